@@ -0,0 +1,131 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.ibm.streams.flow.declare.InputPortDeclaration;
+import com.ibm.streams.flow.declare.OperatorGraph;
+import com.ibm.streams.flow.declare.OperatorGraphFactory;
+import com.ibm.streams.flow.declare.OperatorInvocation;
+import com.ibm.streams.flow.declare.OutputPortDeclaration;
+import com.ibm.streams.flow.handlers.StreamHandler;
+import com.ibm.streams.flow.javaprimitives.JavaOperatorTester;
+import com.ibm.streams.flow.javaprimitives.JavaTestableGraph;
+import com.ibm.streams.operator.Operator;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.Tuple;
+
+/**
+ * Runs an operator of the toolkit in the Java operator test harness of IBM Streams against a {@link RespStubServer}.
+ * <p>Every benchmark invocation submits {@link #TUPLES} prepared tuples followed by a window marker
+ * and waits until the operator forwarded the window marker, that is until all tuples were processed.
+ * The benchmark methods declare <code>@OperationsPerInvocation(TUPLES)</code>, so the results are per tuple.</p>
+ */
+@State(Scope.Benchmark)
+public abstract class OperatorBenchmark {
+
+	/** Number of tuples submitted per benchmark invocation. */
+	public static final int TUPLES = 64;
+
+	/** Execution mode of the operator, interpreted by {@link #configure}. */
+	@Param({"perTuple", "pipelined", "batched"})
+	public String mode;
+
+	/** Artificial round-trip latency of the stub server in microseconds. */
+	@Param({"0", "200"})
+	public long latencyMicros;
+
+	/** Size of the values in bytes. */
+	@Param({"16", "4096"})
+	public int valueSize;
+
+	protected RespStubServer server;
+	private JavaTestableGraph graph;
+	private StreamingOutput<OutputTuple> input;
+	private final List<Tuple> tuples = new ArrayList<Tuple>(TUPLES);
+	private final Semaphore marks = new Semaphore(0);
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new RespStubServer(latencyMicros);
+
+		OperatorGraph declaration = OperatorGraphFactory.newGraph();
+		OperatorInvocation<? extends Operator> operator = declaration.addOperator(getOperatorClass());
+		operator.setStringParameter("redisUrl", server.getUrl());
+		operator.setStringParameter("keyAttr", "key");
+		configure(operator);
+		InputPortDeclaration inputPort = operator.addInput(getInputSchema());
+		OutputPortDeclaration outputPort = operator.addOutput(getOutputSchema());
+
+		graph = new JavaOperatorTester().executable(declaration);
+		graph.registerStreamHandler(outputPort, new StreamHandler<Tuple>() {
+			@Override
+			public void tuple(Tuple tuple) {
+			}
+
+			@Override
+			public void mark(Punctuation mark) {
+				if (mark == Punctuation.WINDOW_MARKER) {
+					marks.release();
+				}
+			}
+		});
+		input = graph.getInputTester(inputPort);
+		graph.executionReady().get();
+
+		StreamSchema schema = input.getStreamSchema();
+		for (int i = 0; i < TUPLES; i++) {
+			byte[] key = ("key" + i).getBytes("UTF-8");
+			byte[] value = new byte[valueSize];
+			for (int b = 0; b < value.length; b++) {
+				value[b] = (byte) ('a' + (i + b) % 26);
+			}
+			server.put(key, value);
+			tuples.add(createTuple(schema, key, value));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		graph.shutdown().get();
+		server.close();
+	}
+
+	/**
+	 * Submits the prepared tuples and waits until the operator processed all of them.
+	 */
+	protected void submitAndWait() throws Exception {
+		for (int i = 0; i < TUPLES; i++) {
+			input.submit(tuples.get(i));
+		}
+		input.punctuate(Punctuation.WINDOW_MARKER);
+		marks.acquire();
+	}
+
+	/** Returns the operator class under test. */
+	protected abstract Class<? extends Operator> getOperatorClass();
+
+	/** Sets the parameters of the operator for {@link #mode}. */
+	protected abstract void configure(OperatorInvocation<? extends Operator> operator);
+
+	/** Returns the SPL schema of the input port. */
+	protected abstract String getInputSchema();
+
+	/** Returns the SPL schema of the output port. */
+	protected abstract String getOutputSchema();
+
+	/** Returns an input tuple for a key and a value. */
+	protected abstract Tuple createTuple(StreamSchema schema, byte[] key, byte[] value);
+}
@@ -0,0 +1,72 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import com.ibm.streams.flow.declare.OperatorInvocation;
+import com.ibm.streams.operator.Operator;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.types.RString;
+import com.ibm.streamsx.redis.RedisGet;
+
+/**
+ * Measures {@link RedisGet} reading existing keys.
+ * <ul>
+ * <li><code>perTuple</code>: one GET round-trip per tuple.</li>
+ * <li><code>pipelined</code>: batches of {@value OperatorBenchmark#TUPLES} pipelined GET commands.</li>
+ * <li><code>batched</code>: batches of {@value OperatorBenchmark#TUPLES} keys read with one MGET command.</li>
+ * </ul>
+ */
+public class RedisGetBenchmark extends OperatorBenchmark {
+
+	@Benchmark
+	@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(TUPLES)
+	public void get() throws Exception {
+		submitAndWait();
+	}
+
+	@Override
+	protected Class<? extends Operator> getOperatorClass() {
+		return RedisGet.class;
+	}
+
+	@Override
+	protected void configure(OperatorInvocation<? extends Operator> operator) {
+		if ("perTuple".equals(mode)) {
+			operator.setIntParameter("batchSize", 1);
+		} else if ("pipelined".equals(mode)) {
+			operator.setIntParameter("batchSize", TUPLES);
+			operator.setStringParameter("lookupMode", RedisGet.LOOKUP_MODE_PIPELINE);
+		} else if ("batched".equals(mode)) {
+			operator.setIntParameter("batchSize", TUPLES);
+			operator.setStringParameter("lookupMode", RedisGet.LOOKUP_MODE_MGET);
+		} else {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+	}
+
+	@Override
+	protected String getInputSchema() {
+		return "tuple<rstring key>";
+	}
+
+	@Override
+	protected String getOutputSchema() {
+		return "tuple<rstring value, rstring key>";
+	}
+
+	@Override
+	protected Tuple createTuple(StreamSchema schema, byte[] key, byte[] value) {
+		return schema.getTuple(Collections.singletonMap("key", new RString(key)));
+	}
+}
@@ -0,0 +1,80 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import com.ibm.streams.flow.declare.OperatorInvocation;
+import com.ibm.streams.operator.Operator;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.types.RString;
+import com.ibm.streamsx.redis.RedisSet;
+
+/**
+ * Measures {@link RedisSet} with the default <code>serverAck</code> mode.
+ * <ul>
+ * <li><code>perTuple</code>: one SET round-trip per tuple.</li>
+ * <li><code>pipelined</code>: batches of {@value OperatorBenchmark#TUPLES} pipelined SET commands.</li>
+ * <li><code>batched</code>: batches of {@value #IN_FLIGHT_BATCH_SIZE} pipelined SET commands,
+ * {@value #MAX_IN_FLIGHT} of them in flight on separate connections.</li>
+ * </ul>
+ */
+public class RedisSetBenchmark extends OperatorBenchmark {
+
+	private static final int IN_FLIGHT_BATCH_SIZE = 16;
+	private static final int MAX_IN_FLIGHT = 4;
+
+	@Benchmark
+	@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@OperationsPerInvocation(TUPLES)
+	public void set() throws Exception {
+		submitAndWait();
+	}
+
+	@Override
+	protected Class<? extends Operator> getOperatorClass() {
+		return RedisSet.class;
+	}
+
+	@Override
+	protected void configure(OperatorInvocation<? extends Operator> operator) {
+		operator.setStringParameter("valueAttr", "value");
+		if ("perTuple".equals(mode)) {
+			operator.setIntParameter("batchSize", 1);
+		} else if ("pipelined".equals(mode)) {
+			operator.setIntParameter("batchSize", TUPLES);
+		} else if ("batched".equals(mode)) {
+			operator.setIntParameter("batchSize", IN_FLIGHT_BATCH_SIZE);
+			operator.setIntParameter("maxInFlight", MAX_IN_FLIGHT);
+		} else {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+	}
+
+	@Override
+	protected String getInputSchema() {
+		return "tuple<rstring key, rstring value>";
+	}
+
+	@Override
+	protected String getOutputSchema() {
+		return "tuple<rstring result, rstring key>";
+	}
+
+	@Override
+	protected Tuple createTuple(StreamSchema schema, byte[] key, byte[] value) {
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("key", new RString(key));
+		values.put("value", new RString(value));
+		return schema.getTuple(values);
+	}
+}
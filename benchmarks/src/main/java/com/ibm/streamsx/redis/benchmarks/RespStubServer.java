@@ -0,0 +1,250 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Minimal in-process REDIS server that speaks RESP over a loopback socket.
+ * <p>It implements the commands used by the string operators of the toolkit
+ * (PING, AUTH, SELECT, QUIT, GET, SET, MGET, DEL and WAIT) on an in-memory map.
+ * Each connection is served by its own thread. All commands that arrived together are
+ * executed, then the replies are delayed by the configured latency and written with one flush,
+ * so that the latency is paid once per round-trip like the network latency of a real server.</p>
+ */
+public final class RespStubServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] OK = "+OK\r\n".getBytes(UTF8);
+	private static final byte[] PONG = "+PONG\r\n".getBytes(UTF8);
+	private static final byte[] NIL = "$-1\r\n".getBytes(UTF8);
+
+	private final long latencyNanos;
+	private final ServerSocket serverSocket;
+	private final ConcurrentHashMap<ByteBuffer, byte[]> store = new ConcurrentHashMap<ByteBuffer, byte[]>();
+	private final List<Socket> connections = new ArrayList<Socket>();
+	private volatile boolean running = true;
+
+	/**
+	 * Starts the server on an ephemeral loopback port.
+	 * @param latencyMicros delay of each round-trip in microseconds.
+	 */
+	public RespStubServer(long latencyMicros) throws IOException {
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "resp-stub-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the url to pass to the <code>redisUrl</code> parameter of the operators.
+	 */
+	public String getUrl() {
+		return "redis://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stores a value, for example to prepare the keys read by a benchmark.
+	 */
+	public void put(byte[] key, byte[] value) {
+		store.put(ByteBuffer.wrap(key), value);
+	}
+
+	/**
+	 * Stops accepting connections and closes all connections.
+	 */
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+		synchronized (connections) {
+			for (Socket socket : connections) {
+				socket.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException e) {
+				return;
+			}
+			synchronized (connections) {
+				connections.add(socket);
+			}
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "resp-stub-connection");
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			while (running) {
+				// Execute everything that arrived in one round-trip before answering.
+				do {
+					if (!execute(readCommand(in), out)) {
+						out.flush();
+						return;
+					}
+				} while (in.available() > 0);
+				if (latencyNanos > 0) {
+					LockSupport.parkNanos(latencyNanos);
+				}
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// The client closed the connection.
+		} catch (IOException e) {
+			// The connection was closed by close().
+		} finally {
+			synchronized (connections) {
+				connections.remove(socket);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore.
+			}
+		}
+	}
+
+	/**
+	 * Executes a command and writes its reply. Returns false if the connection must be closed.
+	 */
+	private boolean execute(byte[][] command, OutputStream out) throws IOException {
+		String name = new String(command[0], UTF8).toUpperCase();
+		if ("GET".equals(name)) {
+			writeBulk(out, store.get(ByteBuffer.wrap(command[1])));
+		} else if ("SET".equals(name)) {
+			store.put(ByteBuffer.wrap(command[1]), command[2]);
+			out.write(OK);
+		} else if ("MGET".equals(name)) {
+			writeHeader(out, '*', command.length - 1);
+			for (int i = 1; i < command.length; i++) {
+				writeBulk(out, store.get(ByteBuffer.wrap(command[i])));
+			}
+		} else if ("DEL".equals(name)) {
+			long removed = 0;
+			for (int i = 1; i < command.length; i++) {
+				if (store.remove(ByteBuffer.wrap(command[i])) != null) {
+					removed++;
+				}
+			}
+			writeHeader(out, ':', removed);
+		} else if ("PING".equals(name)) {
+			out.write(PONG);
+		} else if ("AUTH".equals(name) || "SELECT".equals(name)) {
+			out.write(OK);
+		} else if ("WAIT".equals(name)) {
+			// No replicas.
+			writeHeader(out, ':', 0);
+		} else if ("QUIT".equals(name)) {
+			out.write(OK);
+			return false;
+		} else {
+			out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(UTF8));
+		}
+		return true;
+	}
+
+	private static byte[][] readCommand(InputStream in) throws IOException {
+		expect(in, '*');
+		byte[][] command = new byte[(int) readNumber(in)][];
+		for (int i = 0; i < command.length; i++) {
+			expect(in, '$');
+			byte[] data = new byte[(int) readNumber(in)];
+			int read = 0;
+			while (read < data.length) {
+				int n = in.read(data, read, data.length - read);
+				if (n < 0) {
+					throw new EOFException();
+				}
+				read += n;
+			}
+			// CRLF after the data.
+			read(in);
+			read(in);
+			command[i] = data;
+		}
+		return command;
+	}
+
+	private static void expect(InputStream in, char type) throws IOException {
+		int b = read(in);
+		if (b != type) {
+			throw new IOException("Unexpected RESP type '" + (char) b + "', expected '" + type + "'");
+		}
+	}
+
+	private static long readNumber(InputStream in) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while ((b = read(in)) != '\r') {
+			if (b == '-') {
+				negative = true;
+			} else {
+				value = value * 10 + (b - '0');
+			}
+		}
+		read(in);
+		return negative ? -value : value;
+	}
+
+	private static int read(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.write(NIL);
+			return;
+		}
+		writeHeader(out, '$', value.length);
+		out.write(value);
+		out.write('\r');
+		out.write('\n');
+	}
+
+	private static void writeHeader(OutputStream out, char type, long number) throws IOException {
+		out.write(type);
+		out.write(Long.toString(number).getBytes(UTF8));
+		out.write('\r');
+		out.write('\n');
+	}
+}
@@ -0,0 +1,201 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.List;
+
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.model.Parameter;
+
+/**
+ * Class for an operator that sends a request to REDIS database for the tuples of its input port.
+ * A request is a single tuple, or a micro-batch of tuples if <b>batchSize</b> is greater than 1,
+ * and is executed on the input port thread, or by worker threads if <b>maxInFlight</b> is greater than 0.
+ * <p>Subclasses implement {@link #executeBatch(List)} to send a request and {@link #submitBatch(List, List)}
+ * to submit its results, and pass the incoming tuples to {@link #addToBatch(Tuple)} or {@link #processBatch(List)}.</p>
+ */
+public abstract class AbstractRedisBatchOperator extends AbstractRedisOperator {
+
+	// This parameter specifies the maximum number of tuples processed in one round-trip.
+	protected int batchSize = 1;
+	// This parameter specifies the maximum time in milliseconds a tuple waits in a batch.
+	protected long maxBatchDelay = 0;
+
+	private TupleBatch batch = null;
+
+	// This parameter specifies the maximum number of requests executed asynchronously.
+	protected int maxInFlight = 0;
+	// This parameter specifies if asynchronous results are submitted in input order.
+	protected boolean preserveOrder = true;
+
+	private AsyncBatchExecutor async = null;
+
+	//Parameter batchSize
+	@Parameter(name = "batchSize", optional = true,
+			description = "This optional parameter specifies the maximum number of tuples that are sent to REDIS database in one round-trip. "
+			+ "The default value is 1, which sends one command per tuple. "
+			+ "If the batchSize parameter is specified, it must have exactly one value of type INT32 greater than zero."
+			)
+	public void setBatchSize(int batchSize){
+		this.batchSize = batchSize;
+	}
+
+	//Parameter maxBatchDelay
+	@Parameter(name = "maxBatchDelay", optional = true,
+			description = "This optional parameter specifies the maximum time in milliseconds that a tuple waits in a batch before the batch is sent, even if it is not full. "
+			+ "The default value is 0, which sends a batch only when it is full or when a punctuation mark arrives. "
+			+ "It is only used if **batchSize** is greater than 1."
+			)
+	public void setMaxBatchDelay(long maxBatchDelay){
+		this.maxBatchDelay = maxBatchDelay;
+	}
+
+	//Parameter maxInFlight
+	@Parameter(name = "maxInFlight", optional = true,
+			description = "This optional parameter enables the asynchronous mode and specifies the maximum number of requests in flight. "
+			+ "A request is one tuple, or one batch if **batchSize** is greater than 1. "
+			+ "The requests are executed by as many worker threads, each with its own connection from the connection pool, "
+			+ "so a slow reply does not block the input port. When the limit is reached, the input port waits, "
+			+ "which applies backpressure to the upstream operators. "
+			+ "Punctuation marks are forwarded after all requests in flight completed. "
+			+ "The default value is 0, which executes the requests synchronously on the input port thread."
+			)
+	public void setMaxInFlight(int maxInFlight){
+		this.maxInFlight = maxInFlight;
+	}
+
+	//Parameter preserveOrder
+	@Parameter(name = "preserveOrder", optional = true,
+			description = "This optional parameter specifies if the results of asynchronous requests are submitted in input order. "
+			+ "If false, they are submitted as soon as they complete. The default value is true. It is only used if **maxInFlight** is greater than 0."
+			)
+	public void setPreserveOrder(boolean preserveOrder){
+		this.preserveOrder = preserveOrder;
+	}
+
+	/**
+     * Initialize this operator. Called once before any tuples are processed.
+     * @param context OperatorContext for this operator.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+        if (batchSize > 1) {
+        	batch = new TupleBatch(batchSize, maxBatchDelay, context.getScheduledExecutorService(), new TupleBatch.Flusher() {
+        		@Override
+        		public void flush(List<Tuple> tuples) throws Exception {
+        			processBatch(tuples);
+        		}
+        	});
+        }
+        if (maxInFlight > 0) {
+        	async = new AsyncBatchExecutor(maxInFlight, preserveOrder, context.getThreadFactory(), new AsyncBatchExecutor.Handler() {
+        		@Override
+        		public List<?> execute(List<Tuple> tuples) throws Exception {
+        			return executeBatch(tuples);
+        		}
+
+        		@Override
+        		public void submit(List<Tuple> tuples, List<?> results) throws Exception {
+        			submitBatch(tuples, results);
+        		}
+        	});
+        }
+	}
+
+	/**
+	 * Returns true if the operator collects tuples into micro-batches.
+	 */
+	protected boolean isBatching() {
+		return batch != null;
+	}
+
+	/**
+	 * Adds a tuple to the current micro-batch. The batch is passed to
+	 * {@link #processBatch(List)} when it is full or its delay expired.
+	 * @param tuple the incoming tuple.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	protected void addToBatch(Tuple tuple) throws Exception {
+		batch.add(tuple);
+	}
+
+	/**
+	 * Processes the tuples of the current micro-batch, if any, and
+	 * waits until all asynchronous requests are completed and submitted.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	protected void flushBatch() throws Exception {
+		if (batch != null) {
+			batch.flush();
+		}
+		if (async != null) {
+			async.awaitCompletion();
+		}
+	}
+
+	/**
+	 * Processes a request, which is a single tuple or a micro-batch of tuples:
+	 * synchronously on the calling thread, or handed to the worker threads in asynchronous mode.
+	 * @param tuples the tuples of the request in arrival order.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	protected void processBatch(List<Tuple> tuples) throws Exception {
+		if (async != null) {
+			async.execute(tuples);
+		} else {
+			submitBatch(tuples, executeBatch(tuples));
+		}
+	}
+
+	/**
+	 * Sends a request to REDIS database with as few round-trips as possible.
+	 * May be called concurrently by the worker threads in asynchronous mode.
+	 * @param tuples the tuples of the request in arrival order.
+	 * @return the result of each tuple, in input order.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	protected abstract List<?> executeBatch(List<Tuple> tuples) throws Exception;
+
+	/**
+	 * Submits the results of a request to the output port in input order. Calls are never concurrent.
+	 * @param tuples the tuples of the request in arrival order.
+	 * @param results the results returned by {@link #executeBatch(List)}.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	protected abstract void submitBatch(List<Tuple> tuples, List<?> results) throws Exception;
+
+    /**
+     * Process an incoming punctuation that arrived on the specified port.
+     * @param stream Port the punctuation is arriving on.
+     * @param mark The punctuation mark
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public void processPunctuation(StreamingInput<Tuple> stream,
+    		Punctuation mark) throws Exception {
+    	// Pending batches are completed before the punctuation is forwarded.
+    	flushBatch();
+    	super.processPunctuation(stream, mark);
+    }
+
+    /**
+     * Shutdown this operator.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void shutdown() throws Exception {
+        if (batch != null) {
+        	batch.close();
+        }
+        if (async != null) {
+        	async.shutdown();
+        }
+        // Closes the connections
+        super.shutdown();
+    }
+}
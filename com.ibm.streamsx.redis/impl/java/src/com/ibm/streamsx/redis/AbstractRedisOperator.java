@@ -4,33 +4,26 @@ package com.ibm.streamsx.redis;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 
 import com.ibm.streams.operator.AbstractOperator;
 import com.ibm.streams.operator.OperatorContext;
-import com.ibm.streams.operator.OutputTuple;
 import com.ibm.streams.operator.StreamingData.Punctuation;
 import com.ibm.streams.operator.StreamingInput;
-import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.Tuple;
-import com.ibm.streams.operator.model.InputPortSet;
-import com.ibm.streams.operator.model.InputPortSet.WindowMode;
-import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
-import com.ibm.streams.operator.model.InputPorts;
 import com.ibm.streams.operator.model.Libraries;
-import com.ibm.streams.operator.model.OutputPortSet;
-import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
-import com.ibm.streams.operator.model.OutputPorts;
 import com.ibm.streams.operator.model.Parameter;
-import com.ibm.streams.operator.model.PrimitiveOperator;
 
-import redis.clients.jedis.Connection;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisShardInfo;
-import redis.clients.jedis.Protocol;
-import redis.clients.jedis.Protocol.Command;
-import redis.clients.jedis.commands.ProtocolCommand;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 
@@ -55,14 +48,18 @@ import redis.clients.jedis.exceptions.JedisConnectionException;
  */
 
 @Libraries({"impl/lib/ext/*"})
+public abstract class AbstractRedisOperator extends AbstractOperator {
 
-@PrimitiveOperator(name="Redis", namespace="com.ibm.streamsx.redis",
-description="Java Operator Redis")
-@InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious), @InputPortSet(description="Optional input ports", optional=true, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
-@OutputPorts({@OutputPortSet(description="Port that produces tuples", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating), @OutputPortSet(description="Optional output ports", optional=true, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating)})
-public class AbstractRedisOperator extends AbstractOperator {
+	private static final Logger LOGGER = Logger.getLogger(AbstractRedisOperator.class);
 
-	public Jedis jedis = null;
+	// Replaced by createRedisConnection() while requests may be in flight.
+	private volatile RedisConnectionPool connectionPool = null;
+	private volatile RedisCluster cluster = null;
+	private ExecutorService clusterExecutor = null;
+	// Incremented by every reconnect, so that concurrent requests that failed together reconnect once.
+	private volatile long connectionGeneration = 0;
+	private final Object reconnectLock = new Object();
+	private RedisMetrics metrics = null;
 	// This parameter specifies the REDIS database url.
 	private String redisUrl;
 
@@ -75,6 +72,23 @@ public class AbstractRedisOperator extends AbstractOperator {
 	
 	protected String keyAttr = null;
 	protected String valueAttr = null;
+	// Binary access to the key and value attributes of input port 0.
+	protected AttributeCodec keyCodec = null;
+	protected AttributeCodec valueCodec = null;
+
+	// These parameters specify the size of the connection pool.
+	private int maxConnections = JedisPoolConfig.DEFAULT_MAX_TOTAL;
+	private int maxIdleConnections = JedisPoolConfig.DEFAULT_MAX_IDLE;
+	private int minIdleConnections = JedisPoolConfig.DEFAULT_MIN_IDLE;
+	// This parameter specifies if connections are validated when they are borrowed from the pool.
+	private boolean validateConnections = false;
+	// This parameter specifies if redisUrl lists the seed nodes of a REDIS Cluster.
+	private boolean clusterMode = false;
+
+	// These parameters specify how often and how fast the operator reconnects after a connection failure.
+	protected int reconnectAttempts = 10;
+	protected long reconnectInitialDelay = 100;
+	protected long reconnectMaxDelay = 10000;
 
 
 	//Parameter redisUrl
@@ -90,7 +104,7 @@ public class AbstractRedisOperator extends AbstractOperator {
 
 	//Parameter redisKey
 	@Parameter(name = "redisKey", optional = true, 
-			description = "This parameter specifies the name REDIS key")
+			description = "This parameter specifies the name REDIS key, for example the stream of **RedisStreamSource**.")
     public void setRedisKey(String redisKey){
     	this.redisKey = redisKey;
     }
@@ -116,8 +130,9 @@ public class AbstractRedisOperator extends AbstractOperator {
     }
 
 	//Parameter keyAttr
-	@Parameter(name = "keyAttr", optional = false, 
-			description = "This parameter specifies the name of `key` attribute that coming through input stream."
+	@Parameter(name = "keyAttr", optional = true, 
+			description = "This parameter specifies the name of `key` attribute that coming through input stream. It is required by the operators with an input port. "
+			+ "The attribute can be of type rstring, ustring or blob; rstring and blob keys are sent as raw bytes without conversion."
 			)
     public void setKeyAttr(String keyAttr){
     	this.keyAttr = keyAttr;
@@ -126,41 +141,377 @@ public class AbstractRedisOperator extends AbstractOperator {
 
 	//Parameter valueAttr
 	@Parameter(name = "valueAttr", optional = true, 
-			description = "This parameter specifies the name of `value attribute' that coming through input stream.")
+			description = "This parameter specifies the name of `value attribute' that coming through input stream. "
+			+ "The attribute can be of type rstring, ustring or blob; rstring and blob values are sent as raw bytes without conversion.")
     public void setValueAttr(String valueAttr){
     	this.valueAttr = valueAttr;
     }
 
+	//Parameter maxConnections
+	@Parameter(name = "maxConnections", optional = true,
+			description = "This optional parameter specifies the maximum number of connections in the connection pool. "
+			+ "Operators in the same PE that connect with the same **redisUrl**, **redisPassword** and **connectionTimeout** share one pool; "
+			+ "the pool settings of the first operator that is initialized are used. "
+			+ "When an operator reconnects after a connection failure, the idle connections of its pool are closed. The default value is 8."
+			)
+	public void setMaxConnections(int maxConnections){
+		this.maxConnections = maxConnections;
+	}
+
+	//Parameter maxIdleConnections
+	@Parameter(name = "maxIdleConnections", optional = true,
+			description = "This optional parameter specifies the maximum number of idle connections that are kept in the connection pool. The default value is 8."
+			)
+	public void setMaxIdleConnections(int maxIdleConnections){
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	//Parameter minIdleConnections
+	@Parameter(name = "minIdleConnections", optional = true,
+			description = "This optional parameter specifies the minimum number of idle connections that are kept open in the connection pool. The default value is 0."
+			)
+	public void setMinIdleConnections(int minIdleConnections){
+		this.minIdleConnections = minIdleConnections;
+	}
+
+	//Parameter validateConnections
+	@Parameter(name = "validateConnections", optional = true,
+			description = "This optional parameter specifies if a connection is validated with a PING command each time it is borrowed from the pool. "
+			+ "This costs one extra round-trip per borrow. The default value is false; idle connections are always validated in the background."
+			)
+	public void setValidateConnections(boolean validateConnections){
+		this.validateConnections = validateConnections;
+	}
+
+	//Parameter clusterMode
+	@Parameter(name = "clusterMode", optional = true,
+			description = "This optional parameter specifies if the operator connects to a REDIS Cluster. "
+			+ "In cluster mode **redisUrl** is a comma separated list of seed nodes, for example `redis://host1:7000,redis://host2:7000`. "
+			+ "The slot map is discovered from the seed nodes, every key is routed to the master that owns its hash slot, "
+			+ "and batches are split into one pipeline per node that are sent concurrently. "
+			+ "MOVED and ASK redirections are followed. The connection pool settings apply to each node. The default value is false."
+			)
+	public void setClusterMode(boolean clusterMode){
+		this.clusterMode = clusterMode;
+	}
+
+	//Parameter reconnectAttempts
+	@Parameter(name = "reconnectAttempts", optional = true,
+			description = "This optional parameter specifies how often the operator tries to reconnect when a request fails because "
+			+ "REDIS database is not reachable. The request is sent again after the reconnect. "
+			+ "The delay before each attempt starts at **reconnectInitialDelay** and doubles up to **reconnectMaxDelay**. "
+			+ "If all attempts fail, the operator fails. The value -1 retries forever, 0 fails at the first connection failure. "
+			+ "The default value is 10."
+			)
+	public void setReconnectAttempts(int reconnectAttempts){
+		this.reconnectAttempts = reconnectAttempts;
+	}
+
+	//Parameter reconnectInitialDelay
+	@Parameter(name = "reconnectInitialDelay", optional = true,
+			description = "This optional parameter specifies the delay in milliseconds before the first reconnect attempt. The default value is 100."
+			)
+	public void setReconnectInitialDelay(long reconnectInitialDelay){
+		this.reconnectInitialDelay = reconnectInitialDelay;
+	}
+
+	//Parameter reconnectMaxDelay
+	@Parameter(name = "reconnectMaxDelay", optional = true,
+			description = "This optional parameter specifies the maximum delay in milliseconds between two reconnect attempts. The default value is 10000."
+			)
+	public void setReconnectMaxDelay(long reconnectMaxDelay){
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
 	
 	/**
-	 * Creates a connection to REDIS database
+	 * Returns the pool settings of the operator parameters.
+	 */
+	private JedisPoolConfig createPoolConfig() {
+		JedisPoolConfig config = new JedisPoolConfig();
+		config.setMaxTotal(maxConnections);
+		config.setMaxIdle(maxIdleConnections);
+		config.setMinIdle(minIdleConnections);
+		config.setTestOnBorrow(validateConnections);
+		return config;
+	}
+
+	/**
+	 * Acquires a connection pool to another REDIS server, for example a replica, with the pool
+	 * settings and the password of the operator. The caller must release it with {@link RedisConnectionPool#release}.
+	 * @throws URISyntaxException if the url is invalid.
+	 */
+	RedisConnectionPool acquireConnectionPool(String url) throws URISyntaxException {
+		return RedisConnectionPool.acquire(url, redisPassword, connectionTimeout, createPoolConfig());
+	}
+
+	/**
+	 * Creates the connection pool to REDIS database, or joins the pool
+	 * that another operator in this PE created with the same settings.
+	 * Called again by {@link #reconnect} to replace the connections after a failure.
 	 * @throws URISyntaxException
 	 */
 	public void createRedisConnection() throws URISyntaxException {
-		
-//		public Jedis(final String host, final int port, final int connectionTimeout, final int soTimeout,
-//			      final boolean ssl, final SSLSocketFactory sslSocketFactory, final SSLParameters sslParameters,
-//			      final HostnameVerifier hostnameVerifier) {
-	
-		if ((jedis !=null)&& (jedis.isConnected()))
-		{
-			jedis.close();
+		synchronized (reconnectLock) {
+			JedisPoolConfig config = createPoolConfig();
+			// The new connections are created before the old ones are released, so that a shared pool stays open.
+			RedisConnectionPool oldPool = connectionPool;
+			RedisCluster oldCluster = cluster;
+			if (clusterMode) {
+				if (clusterExecutor == null) {
+					clusterExecutor = Executors.newCachedThreadPool(getOperatorContext().getThreadFactory());
+				}
+				RedisCluster newCluster = new RedisCluster(redisUrl.split(","), redisPassword, connectionTimeout, config, clusterExecutor, metrics);
+				try {
+					newCluster.refresh();
+				} catch (RuntimeException e) {
+					newCluster.close();
+					throw e;
+				}
+				cluster = newCluster;
+			} else {
+				RedisConnectionPool newPool = RedisConnectionPool.acquire(redisUrl, redisPassword, connectionTimeout, config);
+				if (newPool == oldPool) {
+					// A shared pool is not recreated, so its idle connections may still be broken.
+					newPool.clearIdle();
+				}
+				try {
+					Jedis jedis = newPool.getResource();
+					try {
+						jedis.ping();
+					} finally {
+						jedis.close();
+					}
+				} catch (RuntimeException e) {
+					RedisConnectionPool.release(newPool);
+					throw e;
+				}
+				connectionPool = newPool;
+			}
+			if (oldCluster != null) {
+				oldCluster.close();
+			}
+			if (oldPool != null) {
+				RedisConnectionPool.release(oldPool);
+			}
+			connectionGeneration++;
+		}
+	}
+
+	/**
+	 * Reconnects after a connection failure with exponential backoff, using {@link #createRedisConnection()}.
+	 * If another thread reconnected since the failed request started, returns at once.
+	 * The backoff delay is spent outside of the reconnect lock, so threads whose requests failed
+	 * meanwhile return as soon as any thread reconnected.
+	 * @param generation the value of {@link #getConnectionGeneration()} before the failed request.
+	 * @param cause the connection failure.
+	 * @throws Exception <code>cause</code> if all <b>reconnectAttempts</b> failed.
+	 */
+	protected void reconnect(long generation, JedisConnectionException cause) throws Exception {
+		if (generation != connectionGeneration) {
+			return;
+		}
+		LOGGER.warn("Connection to REDIS database failed, reconnecting", cause);
+		long delay = reconnectInitialDelay;
+		for (int attempt = 1; reconnectAttempts < 0 || attempt <= reconnectAttempts; attempt++) {
+			Thread.sleep(delay);
+			synchronized (reconnectLock) {
+				if (generation != connectionGeneration) {
+					return;
+				}
+				try {
+					createRedisConnection();
+					metrics.reconnected();
+					LOGGER.info("Reconnected to REDIS database after " + attempt + " attempts");
+					return;
+				} catch (JedisConnectionException e) {
+					LOGGER.debug("Reconnect attempt " + attempt + " failed", e);
+				}
+			}
+			delay = Math.min(delay * 2, reconnectMaxDelay);
+		}
+		throw cause;
+	}
+
+	/**
+	 * Returns a value that changes whenever the operator reconnected.
+	 */
+	protected long getConnectionGeneration() {
+		return connectionGeneration;
+	}
+
+	/**
+	 * Borrows a connection from the connection pool, in cluster mode a connection to any master.
+	 * The caller must return it with {@link Jedis#close()}, typically in a finally block.
+	 */
+	protected Jedis getConnection() throws URISyntaxException {
+		RedisCluster cluster = this.cluster;
+		if (cluster != null) {
+			return cluster.getAnyPool().getResource();
 		}
-		
-//		System.out.println("createRedisConnection " + redisUrl + " " + connectionTimeout  + " " + redisPassword);
-		jedis = new Jedis(new URI(redisUrl), connectionTimeout);
-		
+		return connectionPool.getResource();
+	}
+
+	/**
+	 * Borrows a connection to the node that owns the key. Without cluster mode this is
+	 * the same as {@link #getConnection()}. The caller must return it with {@link Jedis#close()}.
+	 */
+	protected Jedis getConnection(byte[] key) throws URISyntaxException {
+		RedisCluster cluster = this.cluster;
+		if (cluster != null) {
+			return cluster.getPool(key).getResource();
+		}
+		return connectionPool.getResource();
+	}
+
+	/**
+	 * Borrows one connection to every master in cluster mode, otherwise one connection
+	 * from the connection pool. The caller must return them with {@link Jedis#close()}.
+	 */
+	protected List<Jedis> getMasterConnections() throws URISyntaxException {
+		List<Jedis> connections = new ArrayList<Jedis>();
+		RedisCluster cluster = this.cluster;
+		if (cluster == null) {
+			connections.add(connectionPool.getResource());
+			return connections;
+		}
+		try {
+			for (RedisConnectionPool pool : cluster.getMasters()) {
+				connections.add(pool.getResource());
+			}
+		} catch (RuntimeException e) {
+			for (Jedis jedis : connections) {
+				jedis.close();
+			}
+			throw e;
+		}
+		return connections;
+	}
+
+	/**
+	 * Returns true if the operator is connected to a REDIS Cluster.
+	 */
+	protected boolean isClusterMode() {
+		return cluster != null;
+	}
+
+	/**
+	 * Sends a command for every element of a batch with as few round-trips as possible:
+	 * one pipeline to a single server, or one pipeline per node that owns keys of the batch in cluster mode.
+	 * If REDIS database is not reachable, the operator {@link #reconnect reconnects} and sends the batch again,
+	 * unless the command is not {@link PipelineCommand#isIdempotent() idempotent}.
+	 * @param keys the key of each batch element, used to route the command.
+	 * @param command the command to send for each element.
+	 * @return the reply of each element, in batch order.
+	 * @throws Exception if the command fails, will cause the enclosing PE to terminate.
+	 */
+	protected <T> List<T> executePipelined(byte[][] keys, PipelineCommand<T> command) throws Exception {
+		while (true) {
+			long generation = connectionGeneration;
+			try {
+				return sendPipelined(keys, command);
+			} catch (JedisConnectionException e) {
+				if (!command.isIdempotent()) {
+					// Some commands of the batch may have run, so it must not be sent again.
+					throw e;
+				}
+				reconnect(generation, e);
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #executePipelined}, but sends the batch only once.
+	 * @throws JedisConnectionException if REDIS database is not reachable.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> List<T> sendPipelined(byte[][] keys, PipelineCommand<T> command) throws Exception {
+		Object[] results = new Object[keys.length];
+		long start = metrics.started();
+		try {
+			RedisCluster cluster = this.cluster;
+			if (cluster != null) {
+				cluster.execute(keys, command, results);
+			} else {
+				int[] indexes = new int[keys.length];
+				for (int i = 0; i < indexes.length; i++) {
+					indexes[i] = i;
+				}
+				Jedis jedis = connectionPool.getResource();
+				try {
+					List<Response<T>> responses = command.send(jedis, indexes, indexes.length);
+					for (int i = 0; i < results.length; i++) {
+						results[i] = command.reply(responses.get(i));
+					}
+				} finally {
+					jedis.close();
+				}
+			}
+		} catch (Exception e) {
+			metrics.failed();
+			throw e;
+		}
+		metrics.completed(start, keys.length);
+		return (List<T>) Arrays.asList(results);
+	}
+
+	/**
+	 * Returns the value of the redisKey parameter, or null if it is not set.
+	 */
+	protected String getRedisKey() {
+		return redisKey;
+	}
+
+	/**
+	 * Returns the request metrics of the operator, to record requests that
+	 * are not sent with {@link #executePipelined}.
+	 */
+	protected RedisMetrics getRedisMetrics() {
+		return metrics;
+	}
+
+	private void closeRedisConnection() {
+		if (cluster != null) {
+			cluster.close();
+			cluster = null;
+		}
+		if (clusterExecutor != null) {
+			clusterExecutor.shutdownNow();
+			clusterExecutor = null;
+		}
+		if (connectionPool != null) {
+			RedisConnectionPool.release(connectionPool);
+			connectionPool = null;
+		}
+	}
+
+	/**
+	 * Opens a connection outside of the connection pool, for long blocking
+	 * commands such as subscriptions. The caller must close it.
+	 * @throws URISyntaxException
+	 */
+	protected Jedis createDedicatedConnection() throws URISyntaxException {
+		// In cluster mode, the first seed node.
+		String url = clusterMode ? redisUrl.split(",")[0].trim() : redisUrl;
+		Jedis jedis = new Jedis(new URI(url), connectionTimeout);
 		if (redisPassword != null){
-			jedis.auth(redisPassword);	 
+			jedis.auth(redisPassword);
 		}
-	    jedis.set("foo", "foo_value");
-	    jedis.set("name", "gert");
-	    
-	    String value = jedis.get("foo");
-	    jedis.ping();
-//	    System.out.println("createRedisConnection " + value + " " +jedis.ping());
-	  }
+		return jedis;
+	}
+
 
+	/**
+	 * Opens a connection for mass insertion, see {@link BulkLoader}. The caller must close it.
+	 * @param bufferSize size of the send buffer in bytes.
+	 * @throws IllegalArgumentException in cluster mode, which is not supported.
+	 */
+	BulkLoader createBulkLoader(int bufferSize) throws Exception {
+		if (clusterMode) {
+			throw new IllegalArgumentException("Bulk load is not supported with clusterMode");
+		}
+		return new BulkLoader(redisUrl, redisPassword, connectionTimeout, bufferSize, getOperatorContext().getThreadFactory());
+	}
 	
 	
 	/**
@@ -174,11 +525,17 @@ public class AbstractRedisOperator extends AbstractOperator {
     	// Must call super.initialize(context) to correctly setup an operator.
 		super.initialize(context);
         Logger.getLogger(this.getClass()).trace("Operator " + context.getName() + " initializing in PE: " + context.getPE().getPEId() + " in Job: " + context.getPE().getJobId() );
+        if (context.getNumberOfStreamingInputs() > 0) {
+        	StreamSchema schema = getInput(0).getStreamSchema();
+        	if (keyAttr != null) {
+        		keyCodec = AttributeCodec.forAttribute(schema, keyAttr);
+        	}
+        	if (valueAttr != null) {
+        		valueCodec = AttributeCodec.forAttribute(schema, valueAttr);
+        	}
+        }
+        metrics = new RedisMetrics(context.getMetrics(), context.getScheduledExecutorService());
         createRedisConnection();
-        // TODO:
-        // If needed, insert code to establish connections or resources to communicate an external system or data store.
-        // The configuration information for this may come from parameters supplied to the operator invocation, 
-        // or external configuration files or a combination of the two.
 	}
 
     /**
@@ -216,7 +573,10 @@ public class AbstractRedisOperator extends AbstractOperator {
         OperatorContext context = getOperatorContext();
         Logger.getLogger(this.getClass()).trace("Operator " + context.getName() + " shutting down in PE: " + context.getPE().getPEId() + " in Job: " + context.getPE().getJobId() );
         
-        // TODO: If needed, close connections or release resources related to any external system or data store.
+        closeRedisConnection();
+        if (metrics != null) {
+        	metrics.close();
+        }
 
         // Must call super.shutdown()
         super.shutdown();
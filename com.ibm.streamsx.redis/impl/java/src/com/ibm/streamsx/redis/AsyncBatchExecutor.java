@@ -0,0 +1,150 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.ibm.streams.operator.Tuple;
+
+/**
+ * Executes requests of an operator on a pool of worker threads, each of which
+ * borrows its own connection, and submits the results on completion.
+ * <p>A request is a single tuple or a micro-batch of tuples. At most <code>maxInFlight</code>
+ * requests are executed or waiting for submission at the same time; {@link #execute} blocks
+ * while the limit is reached, which applies backpressure to the upstream operators.</p>
+ * <p>If <code>ordered</code> is true, the results are re-sequenced and submitted in input order,
+ * otherwise in completion order. Submissions never run concurrently.</p>
+ */
+final class AsyncBatchExecutor {
+
+	/**
+	 * Executes a request and submits its results.
+	 */
+	interface Handler {
+		/** Sends the request to REDIS database. Called concurrently by the worker threads. */
+		List<?> execute(List<Tuple> tuples) throws Exception;
+
+		/** Submits the results of a request. Calls are serialized. */
+		void submit(List<Tuple> tuples, List<?> results) throws Exception;
+	}
+
+	private final Handler handler;
+	private final boolean ordered;
+	private final int maxInFlight;
+	private final Semaphore permits;
+	private final ExecutorService workers;
+
+	// Guarded by this.
+	private long nextSequence = 0;
+	private long nextSubmit = 0;
+	private final Map<Long, Completed> completed = new HashMap<Long, Completed>();
+	private Exception failure = null;
+
+	private static final class Completed {
+		final List<Tuple> tuples;
+		final List<?> results;
+
+		Completed(List<Tuple> tuples, List<?> results) {
+			this.tuples = tuples;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * @param maxInFlight maximum number of requests in flight, also the number of worker threads.
+	 * @param ordered true to submit the results in input order.
+	 * @param threadFactory factory for the worker threads.
+	 * @param handler executes and submits the requests.
+	 */
+	AsyncBatchExecutor(int maxInFlight, boolean ordered, ThreadFactory threadFactory, Handler handler) {
+		this.handler = handler;
+		this.ordered = ordered;
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+		this.workers = Executors.newFixedThreadPool(maxInFlight, threadFactory);
+	}
+
+	/**
+	 * Starts a request, waiting while <code>maxInFlight</code> requests are in flight.
+	 * @throws Exception the failure of an earlier request.
+	 */
+	void execute(final List<Tuple> tuples) throws Exception {
+		permits.acquire();
+		final long sequence;
+		synchronized (this) {
+			if (failure != null) {
+				permits.release();
+				throw failure;
+			}
+			sequence = nextSequence++;
+		}
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<?> results = null;
+				Exception error = null;
+				try {
+					results = handler.execute(tuples);
+				} catch (Exception e) {
+					error = e;
+				}
+				complete(sequence, tuples, results, error);
+			}
+		});
+	}
+
+	private synchronized void complete(long sequence, List<Tuple> tuples, List<?> results, Exception error) {
+		if (error != null && failure == null) {
+			failure = error;
+		}
+		if (!ordered) {
+			submit(new Completed(tuples, results));
+			return;
+		}
+		completed.put(Long.valueOf(sequence), new Completed(error == null ? tuples : null, results));
+		Completed next;
+		while ((next = completed.remove(Long.valueOf(nextSubmit))) != null) {
+			nextSubmit++;
+			submit(next);
+		}
+	}
+
+	private void submit(Completed request) {
+		try {
+			// Failed requests and all requests after a failure are not submitted.
+			if (failure == null && request.tuples != null) {
+				handler.submit(request.tuples, request.results);
+			}
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Waits until all requests in flight are completed and submitted.
+	 * @throws Exception the failure of a request.
+	 */
+	void awaitCompletion() throws Exception {
+		permits.acquire(maxInFlight);
+		permits.release(maxInFlight);
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Requests in flight are abandoned.
+	 */
+	void shutdown() {
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,247 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.Type.MetaType;
+import com.ibm.streams.operator.types.Blob;
+import com.ibm.streams.operator.types.RString;
+import com.ibm.streams.operator.types.ValueFactory;
+
+/**
+ * Converts a tuple attribute to and from the binary form that is sent to REDIS database.
+ * <ul>
+ * <li><code>rstring</code> uses the bytes of the attribute without conversion.</li>
+ * <li><code>blob</code> uses the bytes of the attribute, copied only if the blob
+ * does not exactly cover its backing array.</li>
+ * <li><code>ustring</code> and all other types are encoded as UTF-8 strings.</li>
+ * </ul>
+ * <p>Values are received into <code>rstring</code>, <code>ustring</code> and <code>blob</code> attributes
+ * without interpretation. Hash fields can also be received into <code>boolean</code>, integer,
+ * floating point and decimal attributes, whose values are parsed from their string form.
+ * A missing value is written as an empty value into string and blob attributes and leaves other attributes unchanged.</p>
+ */
+final class AttributeCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	private final String name;
+	private final int index;
+	private final MetaType type;
+
+	private AttributeCodec(Attribute attribute) {
+		this.name = attribute.getName();
+		this.index = attribute.getIndex();
+		this.type = attribute.getType().getMetaType();
+	}
+
+	/**
+	 * Returns the codec of an attribute of a schema.
+	 * @throws IllegalArgumentException if the schema has no attribute with this name.
+	 */
+	static AttributeCodec forAttribute(StreamSchema schema, String attributeName) {
+		Attribute attribute = schema.getAttribute(attributeName);
+		if (attribute == null) {
+			throw new IllegalArgumentException("Attribute '" + attributeName + "' does not exist");
+		}
+		return new AttributeCodec(attribute);
+	}
+
+	/**
+	 * Returns the codec of the attribute at an index of a schema.
+	 */
+	static AttributeCodec forAttribute(StreamSchema schema, int attributeIndex) {
+		return new AttributeCodec(schema.getAttribute(attributeIndex));
+	}
+
+	/**
+	 * Returns the codec of an output attribute.
+	 * @throws IllegalArgumentException if the attribute cannot receive REDIS values.
+	 */
+	static AttributeCodec forOutput(StreamSchema schema, String attributeName) {
+		return checkOutput(forAttribute(schema, attributeName));
+	}
+
+	/**
+	 * Returns the codec of the output attribute at an index.
+	 * @throws IllegalArgumentException if the attribute cannot receive REDIS values.
+	 */
+	static AttributeCodec forOutput(StreamSchema schema, int attributeIndex) {
+		return checkOutput(forAttribute(schema, attributeIndex));
+	}
+
+	private static AttributeCodec checkOutput(AttributeCodec codec) {
+		if (codec.type != MetaType.RSTRING && codec.type != MetaType.USTRING && codec.type != MetaType.BLOB) {
+			throw new IllegalArgumentException("Attribute '" + codec.name + "' must be of type rstring, ustring or blob");
+		}
+		return codec;
+	}
+
+	/**
+	 * Returns the codec of an attribute that receives a hash field.
+	 * @throws IllegalArgumentException if the schema has no attribute with this name or its type cannot be parsed.
+	 */
+	static AttributeCodec forField(StreamSchema schema, String attributeName) {
+		AttributeCodec codec = forAttribute(schema, attributeName);
+		if (!isField(codec.type)) {
+			throw new IllegalArgumentException("Attribute '" + attributeName + "' must be of type rstring, ustring, blob, boolean or a numeric type");
+		}
+		return codec;
+	}
+
+	/**
+	 * Returns true if attributes of a type can receive hash fields.
+	 */
+	static boolean isField(MetaType type) {
+		return type == MetaType.RSTRING || type == MetaType.USTRING || type == MetaType.BLOB || isParsed(type);
+	}
+
+	/**
+	 * Returns true if values of a type are parsed from their string form.
+	 */
+	static boolean isParsed(MetaType type) {
+		switch (type) {
+		case BOOLEAN:
+		case INT8:
+		case INT16:
+		case INT32:
+		case INT64:
+		case UINT8:
+		case UINT16:
+		case UINT32:
+		case UINT64:
+		case FLOAT32:
+		case FLOAT64:
+		case DECIMAL32:
+		case DECIMAL64:
+		case DECIMAL128:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	MetaType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the value of the attribute in binary form. The returned array must not be modified.
+	 */
+	byte[] encode(Tuple tuple) {
+		switch (type) {
+		case RSTRING:
+			return ((RString) tuple.getObject(index)).getData();
+		case BLOB:
+			ByteBuffer buffer = tuple.getBlob(index).getByteBuffer();
+			if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+					&& buffer.remaining() == buffer.array().length) {
+				return buffer.array();
+			}
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return data;
+		default:
+			return tuple.getString(index).getBytes(UTF8);
+		}
+	}
+
+	/**
+	 * Returns the value of an integer attribute, for example the delta of a counter.
+	 * Other types are parsed from their string form.
+	 * @throws NumberFormatException if the value is not an integer.
+	 */
+	long encodeLong(Tuple tuple) {
+		switch (type) {
+		case INT8:
+			return tuple.getByte(index);
+		case INT16:
+			return tuple.getShort(index);
+		case INT32:
+			return tuple.getInt(index);
+		case INT64:
+			return tuple.getLong(index);
+		default:
+			return Long.parseLong(tuple.getString(index).trim());
+		}
+	}
+
+	/**
+	 * Sets the attribute of an output tuple to a value read from REDIS database.
+	 * @param value the value, or null for a missing value.
+	 * @throws NumberFormatException if a numeric attribute receives a value that is not a number.
+	 */
+	void decode(OutputTuple outTuple, byte[] value) {
+		if (value == null) {
+			if (isParsed(type)) {
+				return;
+			}
+			value = EMPTY;
+		}
+		switch (type) {
+		case RSTRING:
+			outTuple.setObject(index, new RString(value));
+			break;
+		case BLOB:
+			Blob blob = ValueFactory.newBlob(value);
+			outTuple.setBlob(index, blob);
+			break;
+		case USTRING:
+			outTuple.setString(index, new String(value, UTF8));
+			break;
+		default:
+			parse(outTuple, new String(value, UTF8).trim());
+			break;
+		}
+	}
+
+	private void parse(OutputTuple outTuple, String value) {
+		switch (type) {
+		case BOOLEAN:
+			outTuple.setBoolean(index, Boolean.parseBoolean(value));
+			break;
+		case INT8:
+		case UINT8:
+			// Unsigned values are stored in the signed Java type of the same width.
+			outTuple.setByte(index, (byte) Short.parseShort(value));
+			break;
+		case INT16:
+		case UINT16:
+			outTuple.setShort(index, (short) Integer.parseInt(value));
+			break;
+		case INT32:
+		case UINT32:
+			outTuple.setInt(index, (int) Long.parseLong(value));
+			break;
+		case INT64:
+		case UINT64:
+			outTuple.setLong(index, new BigInteger(value).longValue());
+			break;
+		case FLOAT32:
+			outTuple.setFloat(index, Float.parseFloat(value));
+			break;
+		case FLOAT64:
+			outTuple.setDouble(index, Double.parseDouble(value));
+			break;
+		default:
+			outTuple.setBigDecimal(index, new BigDecimal(value));
+			break;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.util.JedisURIHelper;
+
+/**
+ * Writes commands to a REDIS server for mass insertion, like <code>redis-cli --pipe</code>.
+ * <p>The commands are encoded in the RESP protocol into a reusable direct buffer, which is written
+ * to a blocking socket channel when it is full. A reader thread reads the replies concurrently
+ * and only counts them, so the writer never waits for a round-trip. Error replies are counted
+ * and the first one is kept; {@link #finish} waits until all commands were answered and reports them.</p>
+ * <p>Only commands with status, integer or error replies are supported, such as SET and HSET.</p>
+ * <p>{@link #send} and {@link #finish} may be called by several threads. The writes are guarded by
+ * their own lock, so that a writer blocked by the server does not block the reader thread.</p>
+ */
+final class BulkLoader {
+
+	private static final Logger LOGGER = Logger.getLogger(BulkLoader.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] CRLF = { '\r', '\n' };
+	// Maximum length of a reply line that is kept.
+	private static final int MAX_LINE = 512;
+
+	private final SocketChannel channel;
+	private final ByteBuffer buffer;
+	private final Thread reader;
+
+	// Guards the send buffer, the channel writes and sent.
+	private final Object writeLock = new Object();
+	// Number of commands sent, read without the write lock by getPending().
+	private volatile long sent = 0;
+
+	// Guarded by this.
+	private long replies = 0;
+	private long errors = 0;
+	private String firstError = null;
+	private IOException readFailure = null;
+
+	/**
+	 * Connects to the server of a url and starts the reader thread.
+	 * @param redisUrl url of the REDIS server, redis://[:password@]host[:port][/database]
+	 * @param password password of the REDIS server, or null to use the password of the url.
+	 * @param timeout connection timeout in milliseconds.
+	 * @param bufferSize size of the send buffer in bytes.
+	 * @param threadFactory factory for the reader thread.
+	 */
+	BulkLoader(String redisUrl, String password, int timeout, int bufferSize, ThreadFactory threadFactory)
+			throws URISyntaxException, IOException {
+		URI uri = new URI(redisUrl);
+		if (!JedisURIHelper.isValid(uri)) {
+			throw new URISyntaxException(redisUrl, "Expected redis://<server>:<port>");
+		}
+		if (JedisURIHelper.isRedisSSLScheme(uri)) {
+			throw new IllegalArgumentException("Bulk load does not support SSL connections: " + redisUrl);
+		}
+		channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 6379), timeout);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		reader = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				readReplies();
+			}
+		});
+		reader.start();
+
+		// The replies of AUTH and SELECT are counted like all other replies.
+		String authPassword = (password != null) ? password : JedisURIHelper.getPassword(uri);
+		if (authPassword != null) {
+			send(bytes("AUTH"), bytes(authPassword));
+		}
+		int db = JedisURIHelper.getDBIndex(uri);
+		if (db != 0) {
+			send(bytes("SELECT"), bytes(String.valueOf(db)));
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF8);
+	}
+
+	/**
+	 * Encodes a command into the send buffer, writing the buffer to the server when it is full.
+	 * @param args the command name and its arguments.
+	 */
+	void send(byte[]... args) throws IOException {
+		checkReader();
+		synchronized (writeLock) {
+			encode(args);
+		}
+	}
+
+	private void encode(byte[][] args) throws IOException {
+		ensure(16);
+		buffer.put((byte) '*');
+		putDecimal(args.length);
+		for (byte[] arg : args) {
+			ensure(16);
+			buffer.put((byte) '$');
+			putDecimal(arg.length);
+			if (arg.length + 2 <= buffer.capacity()) {
+				ensure(arg.length + 2);
+				buffer.put(arg);
+				buffer.put(CRLF);
+			} else {
+				// A large argument is written directly instead of through the buffer.
+				write();
+				ByteBuffer direct = ByteBuffer.wrap(arg);
+				while (direct.hasRemaining()) {
+					channel.write(direct);
+				}
+				buffer.put(CRLF);
+			}
+		}
+		sent++;
+	}
+
+	/**
+	 * Writes the number and the CRLF that ends a RESP header, without allocating.
+	 */
+	private void putDecimal(int value) {
+		int divisor = 1;
+		while (divisor <= value / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			buffer.put((byte) ('0' + (value / divisor) % 10));
+		}
+		buffer.put(CRLF);
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			write();
+		}
+	}
+
+	/**
+	 * Writes the send buffer to the server. Blocks while the server does not read,
+	 * which applies backpressure to the caller.
+	 */
+	private void write() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the send buffer and waits until all commands sent so far were answered.
+	 * @return the number of error replies since the last call.
+	 * @throws IOException if the connection failed.
+	 */
+	long finish() throws IOException, InterruptedException {
+		long written;
+		synchronized (writeLock) {
+			write();
+			written = sent;
+		}
+		synchronized (this) {
+			// Commands that other threads send meanwhile may still be in the buffer.
+			while (replies < written && readFailure == null) {
+				wait();
+			}
+			checkReader();
+			long failed = errors;
+			if (failed > 0) {
+				LOGGER.error(failed + " of the bulk loaded commands failed, the first error was: " + firstError);
+			}
+			errors = 0;
+			firstError = null;
+			return failed;
+		}
+	}
+
+	private synchronized void checkReader() throws IOException {
+		if (readFailure != null) {
+			throw new IOException("Bulk load connection failed after " + replies + " replies", readFailure);
+		}
+	}
+
+	/**
+	 * Reads and counts the replies until the connection is closed.
+	 * The replies are single lines: +status, :integer or -error.
+	 */
+	private void readReplies() {
+		ByteBuffer input = ByteBuffer.allocateDirect(64 * 1024);
+		byte[] line = new byte[MAX_LINE];
+		int lineLength = 0;
+		boolean error = false;
+		boolean lineStart = true;
+		try {
+			while (channel.read(input) >= 0) {
+				input.flip();
+				long lines = 0;
+				while (input.hasRemaining()) {
+					byte b = input.get();
+					if (lineStart) {
+						if (b == '$' || b == '*') {
+							throw new IOException("Unexpected bulk reply in bulk load");
+						}
+						error = b == '-';
+						lineStart = false;
+						lineLength = 0;
+						continue;
+					}
+					if (b == '\n') {
+						lines++;
+						if (error) {
+							recordError(new String(line, 0, Math.max(lineLength - 1, 0), UTF8));
+						}
+						lineStart = true;
+					} else if (error && lineLength < line.length) {
+						line[lineLength++] = b;
+					}
+				}
+				input.clear();
+				if (lines > 0) {
+					replied(lines);
+				}
+			}
+			throw new IOException("Connection closed by the server");
+		} catch (IOException e) {
+			synchronized (this) {
+				if (channel.isOpen()) {
+					readFailure = e;
+				} else {
+					// Closed by close().
+					readFailure = new IOException("Bulk load connection is closed");
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void recordError(String message) {
+		errors++;
+		if (firstError == null) {
+			firstError = message;
+		}
+	}
+
+	private synchronized void replied(long lines) {
+		replies += lines;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of commands that were sent and not answered yet.
+	 */
+	synchronized long getPending() {
+		return sent - replies;
+	}
+
+	/**
+	 * Closes the connection without waiting for the replies.
+	 */
+	void close() {
+		try {
+			channel.close();
+			reader.join(1000);
+		} catch (Exception e) {
+			LOGGER.debug("Closing the bulk load connection failed", e);
+		}
+	}
+}
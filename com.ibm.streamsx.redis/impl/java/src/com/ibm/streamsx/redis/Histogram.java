@@ -0,0 +1,75 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets.
+ * <p>Values below {@value #SUB_BUCKETS} have their own bucket, larger values are counted in
+ * {@value #SUB_BUCKETS} buckets per power of two, so a percentile is accurate to 1/{@value #SUB_BUCKETS}
+ * of its value. {@link #record} is a single atomic increment and does not allocate;
+ * it can be called concurrently with {@link #drain}.</p>
+ */
+final class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	// Used by drain() only.
+	private final long[] snapshot = new long[BUCKETS];
+
+	/**
+	 * Counts a value. Negative values are counted as 0.
+	 */
+	void record(long value) {
+		counts.incrementAndGet(bucket(Math.max(value, 0)));
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+	}
+
+	/**
+	 * Moves the counts recorded since the last call into a snapshot and returns their number.
+	 * Must not be called concurrently with itself or {@link #percentile}.
+	 */
+	long drain() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.getAndSet(i, 0);
+			total += snapshot[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the lower bound of the bucket of a percentile of the last snapshot.
+	 * @param percentile the percentile, between 0 and 100.
+	 * @param total the number of values returned by {@link #drain()}.
+	 */
+	long percentile(double percentile, long total) {
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && seen > 0) {
+				return lowerBound(i);
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,155 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+/**
+ * Bounded in-operator cache of REDIS values.
+ * <p>Entries are evicted in least recently used order (<code>lru</code>) or,
+ * approximately, least frequently used order (<code>lfu</code>): the entry with the fewest hits
+ * among the oldest {@value #LFU_SAMPLES} entries is evicted, similar to the sampling of REDIS itself.
+ * Entries expire after a time-to-live. Missing keys can be cached as well (negative caching).</p>
+ * <p>All methods are thread-safe. Values read from REDIS are only stored with {@link #put}
+ * if no invalidation happened since the {@link #version()} taken before the read, so that
+ * an invalidation that overtakes a read does not leave a stale value in the cache.</p>
+ */
+final class NearCache {
+
+	public static final String EVICTION_LRU = "lru";
+	public static final String EVICTION_LFU = "lfu";
+
+	private static final int LFU_SAMPLES = 16;
+
+	/**
+	 * A cached value. The value is null if the key does not exist in REDIS.
+	 */
+	static final class Entry {
+		final byte[] value;
+		final long expires;
+		long hits = 0;
+
+		Entry(byte[] value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxSize;
+	private final boolean lfu;
+	private final long ttl;
+	private final boolean cacheMissingKeys;
+	// Keys are wrapped in ByteBuffers, which compare by content.
+	private final LinkedHashMap<ByteBuffer, Entry> entries;
+	private long version = 0;
+
+	private final Metric hits;
+	private final Metric misses;
+	private final Metric evictions;
+
+	/**
+	 * @param maxSize maximum number of entries.
+	 * @param eviction {@link #EVICTION_LRU} or {@link #EVICTION_LFU}.
+	 * @param ttl time-to-live of an entry in milliseconds, 0 for no expiry.
+	 * @param cacheMissingKeys true to cache keys that do not exist.
+	 * @param hits counter for cache hits.
+	 * @param misses counter for cache misses.
+	 * @param evictions counter for entries evicted because the cache was full.
+	 */
+	NearCache(int maxSize, String eviction, long ttl, boolean cacheMissingKeys, Metric hits, Metric misses, Metric evictions) {
+		if (!EVICTION_LRU.equals(eviction) && !EVICTION_LFU.equals(eviction)) {
+			throw new IllegalArgumentException("Invalid cache eviction '" + eviction + "', expected " + EVICTION_LRU + " or " + EVICTION_LFU);
+		}
+		this.maxSize = maxSize;
+		this.lfu = EVICTION_LFU.equals(eviction);
+		this.ttl = ttl;
+		this.cacheMissingKeys = cacheMissingKeys;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		// LRU keeps the entries in access order, LFU in insertion order.
+		this.entries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, !lfu);
+	}
+
+	/**
+	 * Returns the cached entry of a key, or null if the key is not cached or expired.
+	 */
+	synchronized Entry get(byte[] key) {
+		ByteBuffer cacheKey = ByteBuffer.wrap(key);
+		Entry entry = entries.get(cacheKey);
+		if (entry != null && ttl > 0 && entry.expires <= System.currentTimeMillis()) {
+			entries.remove(cacheKey);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		entry.hits++;
+		hits.increment();
+		return entry;
+	}
+
+	/**
+	 * Returns the invalidation version, to be passed to {@link #put} for values read afterwards.
+	 */
+	synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Caches a value read from REDIS, unless an invalidation happened since <code>readVersion</code>.
+	 * @param key the key.
+	 * @param value the value, or null if the key does not exist.
+	 * @param readVersion the {@link #version()} taken before the value was read.
+	 */
+	synchronized void put(byte[] key, byte[] value, long readVersion) {
+		if (readVersion != version || (value == null && !cacheMissingKeys)) {
+			return;
+		}
+		long expires = (ttl > 0) ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+		if (entries.put(ByteBuffer.wrap(key), new Entry(value, expires)) == null && entries.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Removes a key that was changed in REDIS.
+	 */
+	synchronized void invalidate(byte[] key) {
+		version++;
+		entries.remove(ByteBuffer.wrap(key));
+	}
+
+	/**
+	 * Removes all keys, for example when invalidation messages may have been lost.
+	 */
+	synchronized void clear() {
+		version++;
+		entries.clear();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<ByteBuffer, Entry>> iterator = entries.entrySet().iterator();
+		if (!lfu) {
+			iterator.next();
+			iterator.remove();
+		} else {
+			ByteBuffer victim = null;
+			long fewestHits = Long.MAX_VALUE;
+			for (int i = 0; i < LFU_SAMPLES && iterator.hasNext(); i++) {
+				Map.Entry<ByteBuffer, Entry> candidate = iterator.next();
+				if (candidate.getValue().hits < fewestHits) {
+					fewestHits = candidate.getValue().hits;
+					victim = candidate.getKey();
+				}
+			}
+			entries.remove(victim);
+		}
+		evictions.increment();
+	}
+}
@@ -0,0 +1,166 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Keeps a {@link NearCache} coherent with REDIS by listening for invalidation messages
+ * on a dedicated side connection.
+ * <ul>
+ * <li><code>tracking</code> enables CLIENT TRACKING in broadcasting mode (REDIS 6 or later) on a second
+ * dedicated connection and redirects the invalidation messages to the listening connection.</li>
+ * <li><code>keyspace</code> subscribes to keyspace notifications. The REDIS server must be configured
+ * with <code>notify-keyspace-events</code> that include <code>K</code> and the events of the cached keys,
+ * for example <code>K$gx</code>.</li>
+ * </ul>
+ * <p>The messages are read from the raw protocol, because the invalidation messages of CLIENT TRACKING
+ * carry an array of keys instead of a single message. If the side connection fails, the cache
+ * is cleared and the listener reconnects.</p>
+ */
+final class NearCacheInvalidator implements Runnable {
+
+	public static final String INVALIDATION_NONE = "none";
+	public static final String INVALIDATION_TRACKING = "tracking";
+	public static final String INVALIDATION_KEYSPACE = "keyspace";
+
+	private static final Logger LOGGER = Logger.getLogger(NearCacheInvalidator.class);
+
+	private static final String TRACKING_CHANNEL = "__redis__:invalidate";
+	private static final String KEYSPACE_PATTERN = "__keyspace@*__:*";
+	private static final long RECONNECT_DELAY = 1000;
+
+	private final AbstractRedisOperator operator;
+	private final NearCache cache;
+	private final boolean tracking;
+	private final Thread thread;
+
+	private volatile boolean running = true;
+	private volatile Jedis listener = null;
+	private Jedis tracker = null;
+
+	/**
+	 * @param operator the operator that creates the dedicated connections.
+	 * @param cache the cache to invalidate.
+	 * @param mode {@link #INVALIDATION_TRACKING} or {@link #INVALIDATION_KEYSPACE}.
+	 * @param threadFactory factory for the listener thread.
+	 */
+	NearCacheInvalidator(AbstractRedisOperator operator, NearCache cache, String mode, ThreadFactory threadFactory) {
+		if (!INVALIDATION_TRACKING.equals(mode) && !INVALIDATION_KEYSPACE.equals(mode)) {
+			throw new IllegalArgumentException("Invalid cache invalidation '" + mode + "', expected "
+					+ INVALIDATION_NONE + ", " + INVALIDATION_TRACKING + " or " + INVALIDATION_KEYSPACE);
+		}
+		this.operator = operator;
+		this.cache = cache;
+		this.tracking = INVALIDATION_TRACKING.equals(mode);
+		this.thread = threadFactory.newThread(this);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops listening and closes the side connections.
+	 */
+	void stop() {
+		running = false;
+		Jedis jedis = listener;
+		if (jedis != null) {
+			// Unblocks the listener thread.
+			jedis.disconnect();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				listen();
+			} catch (Exception e) {
+				if (!running) {
+					break;
+				}
+				LOGGER.warn("Cache invalidation connection failed, clearing the cache and reconnecting", e);
+				operator.getRedisMetrics().reconnected();
+				cache.clear();
+				try {
+					Thread.sleep(RECONNECT_DELAY);
+				} catch (InterruptedException ie) {
+					break;
+				}
+			} finally {
+				close();
+			}
+		}
+	}
+
+	private void listen() throws Exception {
+		listener = operator.createDedicatedConnection();
+		Client client = listener.getClient();
+		if (tracking) {
+			client.sendCommand(Protocol.Command.CLIENT, "ID");
+			String clientId = String.valueOf(client.getIntegerReply());
+			tracker = operator.createDedicatedConnection();
+			tracker.getClient().sendCommand(Protocol.Command.CLIENT, "TRACKING", "on", "REDIRECT", clientId, "BCAST");
+			tracker.getClient().getStatusCodeReply();
+			client.subscribe(SafeEncoder.encode(TRACKING_CHANNEL));
+		} else {
+			client.psubscribe(SafeEncoder.encode(KEYSPACE_PATTERN));
+		}
+		client.setTimeoutInfinite();
+		// Keys changed while the connection was down were not reported.
+		cache.clear();
+
+		while (running) {
+			List<?> message = (List<?>) client.getOne();
+			String kind = SafeEncoder.encode((byte[]) message.get(0));
+			if ("message".equals(kind)) {
+				// Tracking: an array of keys, or null if the server flushed its database.
+				Object keys = message.get(2);
+				if (keys instanceof List) {
+					for (Object key : (List<?>) keys) {
+						cache.invalidate((byte[]) key);
+					}
+				} else if (keys instanceof byte[]) {
+					cache.invalidate((byte[]) keys);
+				} else {
+					cache.clear();
+				}
+			} else if ("pmessage".equals(kind)) {
+				// Keyspace notification: the channel is __keyspace@<db>__:<key>, the key may be binary.
+				byte[] channel = (byte[]) message.get(2);
+				int start = keyStart(channel);
+				cache.invalidate(Arrays.copyOfRange(channel, start, channel.length));
+			}
+		}
+	}
+
+	private static int keyStart(byte[] channel) {
+		for (int i = 0; i + 2 < channel.length; i++) {
+			if (channel[i] == '_' && channel[i + 1] == '_' && channel[i + 2] == ':') {
+				return i + 3;
+			}
+		}
+		return channel.length;
+	}
+
+	private void close() {
+		if (tracker != null) {
+			tracker.close();
+			tracker = null;
+		}
+		if (listener != null) {
+			listener.close();
+			listener = null;
+		}
+	}
+}
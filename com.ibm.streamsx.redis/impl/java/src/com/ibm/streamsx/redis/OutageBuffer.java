@@ -0,0 +1,230 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+/**
+ * Bounded FIFO buffer of key value pairs that could not be written while REDIS database was not reachable.
+ * <p>Pairs are kept in memory up to <code>memoryCapacity</code> bytes. Further pairs spill to a
+ * memory-mapped file of <code>spillCapacity</code> bytes; while the file holds pairs, new pairs are
+ * appended to the file as well, so that the pairs are replayed in arrival order.
+ * When both are full, {@link #append} waits until the replay made room, which applies backpressure.</p>
+ * <p>An outage starts with {@link #start} and ends with {@link #finish} once the buffer was replayed.
+ * The replay reads pairs with {@link #peek} and removes them with {@link #remove} after they were written.
+ * If the replay gives up, it records the cause with {@link #fail}; the pairs stay in the buffer
+ * and every further append throws, so that the operator fails instead of losing writes.</p>
+ */
+final class OutageBuffer {
+
+	// Estimated memory of a pair in addition to its data.
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final long memoryCapacity;
+	private final File spillFile;
+	private final int spillCapacity;
+	private final Metric bufferedBytes;
+	private final Metric bufferedWrites;
+
+	// Guarded by this.
+	private boolean active = false;
+	private boolean closed = false;
+	private Exception failure = null;
+	private final ArrayDeque<byte[][]> memory = new ArrayDeque<byte[][]>();
+	private long memoryBytes = 0;
+	private MappedByteBuffer spill = null;
+	private int spillCount = 0;
+	private int spillRead = 0;
+	private int spillPeekEnd = 0;
+
+	/**
+	 * @param memoryCapacity maximum bytes kept in memory.
+	 * @param spillFile the spill file, created on first use.
+	 * @param spillCapacity size of the spill file in bytes, 0 to keep pairs in memory only.
+	 * @param bufferedBytes gauge of the bytes in the buffer.
+	 * @param bufferedWrites gauge of the pairs in the buffer.
+	 */
+	OutageBuffer(long memoryCapacity, File spillFile, int spillCapacity, Metric bufferedBytes, Metric bufferedWrites) {
+		this.memoryCapacity = memoryCapacity;
+		this.spillFile = spillFile;
+		this.spillCapacity = spillCapacity;
+		this.bufferedBytes = bufferedBytes;
+		this.bufferedWrites = bufferedWrites;
+	}
+
+	/**
+	 * Returns true if an outage is active, that is if writes must be appended to the buffer.
+	 */
+	synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Starts an outage and appends pairs.
+	 * @return true if the outage was not active before, so the caller must start the replay.
+	 */
+	synchronized boolean start(byte[][] keys, byte[][] values) throws IOException, InterruptedException {
+		boolean started = !active;
+		active = true;
+		append(keys, values);
+		return started;
+	}
+
+	/**
+	 * Appends pairs if an outage is active, waiting while the buffer is full.
+	 * @return false if no outage is active; the pairs must be written by the caller.
+	 */
+	synchronized boolean appendIfActive(byte[][] keys, byte[][] values) throws IOException, InterruptedException {
+		if (!active) {
+			return false;
+		}
+		append(keys, values);
+		return true;
+	}
+
+	private void append(byte[][] keys, byte[][] values) throws IOException, InterruptedException {
+		for (int i = 0; i < keys.length; i++) {
+			int size = keys[i].length + values[i].length;
+			while (true) {
+				if (closed) {
+					throw new IOException("The outage buffer is closed");
+				}
+				if (failure != null) {
+					throw new IOException("The replay of the outage buffer failed", failure);
+				}
+				if (spillCount == 0 && (memoryBytes + size + ENTRY_OVERHEAD <= memoryCapacity || memory.isEmpty())) {
+					memory.addLast(new byte[][] { keys[i], values[i] });
+					memoryBytes += size + ENTRY_OVERHEAD;
+					break;
+				}
+				if (spillCapacity > 0 && spillFits(size)) {
+					writeSpill(keys[i], values[i]);
+					break;
+				}
+				wait();
+			}
+		}
+		updateMetrics();
+	}
+
+	private boolean spillFits(int size) throws IOException {
+		if (spill == null) {
+			RandomAccessFile file = new RandomAccessFile(spillFile, "rw");
+			try {
+				spill = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, spillCapacity);
+			} finally {
+				// The mapping stays valid after the file is closed.
+				file.close();
+			}
+		}
+		return spill.position() + 8 + size <= spillCapacity;
+	}
+
+	private void writeSpill(byte[] key, byte[] value) {
+		spill.putInt(key.length);
+		spill.put(key);
+		spill.putInt(value.length);
+		spill.put(value);
+		spillCount++;
+	}
+
+	/**
+	 * Copies the oldest pairs into <code>keys</code> and <code>values</code> without removing them.
+	 * @return the number of pairs copied, 0 if the buffer is empty.
+	 */
+	synchronized int peek(byte[][] keys, byte[][] values) {
+		int count = 0;
+		Iterator<byte[][]> iterator = memory.iterator();
+		while (count < keys.length && iterator.hasNext()) {
+			byte[][] entry = iterator.next();
+			keys[count] = entry[0];
+			values[count] = entry[1];
+			count++;
+		}
+		if (count < keys.length && spillCount > 0) {
+			ByteBuffer reader = spill.duplicate();
+			reader.position(spillRead);
+			for (int i = 0; count < keys.length && i < spillCount; i++) {
+				keys[count] = new byte[reader.getInt()];
+				reader.get(keys[count]);
+				values[count] = new byte[reader.getInt()];
+				reader.get(values[count]);
+				count++;
+			}
+			spillPeekEnd = reader.position();
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the pairs returned by the last {@link #peek}.
+	 */
+	synchronized void remove(int count) {
+		int fromSpill = Math.max(count - memory.size(), 0);
+		for (int i = 0; i < count - fromSpill; i++) {
+			byte[][] entry = memory.removeFirst();
+			memoryBytes -= entry[0].length + entry[1].length + ENTRY_OVERHEAD;
+		}
+		if (fromSpill > 0) {
+			spillCount -= fromSpill;
+			spillRead = spillPeekEnd;
+			if (spillCount == 0) {
+				spill.clear();
+				spillRead = 0;
+			}
+		}
+		updateMetrics();
+		notifyAll();
+	}
+
+	/**
+	 * Records that the buffered pairs cannot be replayed. The pairs are kept, and the
+	 * appends that follow, including appends waiting for room, throw an IOException with this cause.
+	 */
+	synchronized void fail(Exception cause) {
+		if (failure == null) {
+			failure = cause;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Ends the outage if the buffer is empty.
+	 * @return true if the outage ended, false if pairs were appended since the last {@link #peek}.
+	 */
+	synchronized boolean finish() {
+		if (!memory.isEmpty() || spillCount > 0) {
+			return false;
+		}
+		active = false;
+		return true;
+	}
+
+	private void updateMetrics() {
+		bufferedWrites.setValue(memory.size() + spillCount);
+		bufferedBytes.setValue(memoryBytes + (spill != null ? spill.position() - spillRead : 0));
+	}
+
+	/**
+	 * Discards the buffered pairs and deletes the spill file.
+	 * @return the number of pairs that were discarded.
+	 */
+	synchronized int close() {
+		int discarded = memory.size() + spillCount;
+		closed = true;
+		memory.clear();
+		spillCount = 0;
+		spill = null;
+		spillFile.delete();
+		notifyAll();
+		return discarded;
+	}
+}
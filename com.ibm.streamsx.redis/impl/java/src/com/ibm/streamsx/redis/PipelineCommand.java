@@ -0,0 +1,70 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * A command that is sent for every element of a batch, one pipeline per REDIS node.
+ * <p>Used by {@link AbstractRedisOperator#executePipelined} for a single server
+ * and by {@link RedisCluster} for the nodes of a cluster.</p>
+ * @param <T> the reply type of the command.
+ */
+abstract class PipelineCommand<T> {
+
+	/**
+	 * Queues the command of one batch element on the pipeline.
+	 * @param pipeline the pipeline of the node that owns the key of the element.
+	 * @param index index of the element in the batch.
+	 */
+	abstract Response<T> queue(Pipeline pipeline, int index);
+
+	/**
+	 * Returns the result of a batch element from its response.
+	 * By default the reply, or an exception if the reply is an error.
+	 * @param response the response returned by {@link #queue}.
+	 */
+	Object reply(Response<T> response) {
+		return response.get();
+	}
+
+	/**
+	 * Called on the connection of a node after the replies of its pipeline were read.
+	 * @param jedis the connection that sent the pipeline.
+	 * @param commands number of commands in the pipeline.
+	 */
+	void synced(Jedis jedis, int commands) {
+	}
+
+	/**
+	 * Returns true if the command may run more than once for a batch element. Then a pipeline that
+	 * failed with a connection failure is sent again after the reconnect, although some of its
+	 * commands may already have run. Commands such as INCRBY or scripts return false; their pipeline
+	 * is sent only once and a connection failure is reported to the caller.
+	 */
+	boolean isIdempotent() {
+		return true;
+	}
+
+	/**
+	 * Sends the commands of the given batch elements in one pipeline and waits for the replies.
+	 * @param jedis the connection to send the pipeline on.
+	 * @param indexes indexes of the batch elements to send.
+	 * @param count number of valid entries in <code>indexes</code>.
+	 * @return the responses in the order of <code>indexes</code>.
+	 */
+	List<Response<T>> send(Jedis jedis, int[] indexes, int count) {
+		List<Response<T>> responses = new ArrayList<Response<T>>(count);
+		Pipeline pipeline = jedis.pipelined();
+		for (int i = 0; i < count; i++) {
+			responses.add(queue(pipeline, indexes[i]));
+		}
+		pipeline.sync();
+		synced(jedis, count);
+		return responses;
+	}
+}
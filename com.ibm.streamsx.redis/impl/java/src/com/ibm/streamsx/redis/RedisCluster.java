@@ -0,0 +1,369 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisNoReachableClusterNodeException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.JedisURIHelper;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Routes commands to the nodes of a REDIS Cluster.
+ * <p>The slot map is discovered with CLUSTER SLOTS from the seed nodes and refreshed
+ * when a node answers with a MOVED redirection or cannot be reached.
+ * Each node has its own {@link RedisConnectionPool}.</p>
+ * <p>{@link #execute} splits a batch into one pipeline per node and sends the pipelines concurrently.
+ * Elements redirected with ASK are sent to the importing node after an ASKING command,
+ * elements redirected with MOVED are sent again after the slot map was refreshed.
+ * A pipeline that fails with a connection failure is sent again only if its command is idempotent.
+ * The attempts are spaced by a short backoff, so that a failover or resharding can complete.
+ * If the batch is still redirected after {@value #MAX_ATTEMPTS} attempts, it fails with a
+ * {@link JedisConnectionException}, so that the operator reconnects.</p>
+ * <p>The pool of a node that no longer owns slots is released at the next refresh, not at once,
+ * because a concurrent batch may still use it. A batch that finds the pool of its node closed
+ * is sent again after a refresh, like after a connection failure.</p>
+ */
+final class RedisCluster {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisCluster.class);
+
+	private static final int SLOTS = 16384;
+	private static final int MAX_ATTEMPTS = 5;
+	// Delay in milliseconds before the second attempt, doubled for each further attempt.
+	private static final long RETRY_DELAY = 10;
+
+	private final List<URI> seeds = new ArrayList<URI>();
+	private final String scheme;
+	private final String password;
+	private final int timeout;
+	private final JedisPoolConfig config;
+	private final ExecutorService executor;
+	private final RedisMetrics metrics;
+
+	// Pools of the nodes that own slots or were the target of an ASK redirection, by host:port.
+	private final Map<String, RedisConnectionPool> nodes = new LinkedHashMap<String, RedisConnectionPool>();
+	private volatile RedisConnectionPool[] slots = new RedisConnectionPool[SLOTS];
+	// Pools of the nodes that lost their slots at the last refresh, released at the next refresh.
+	private final List<RedisConnectionPool> retired = new ArrayList<RedisConnectionPool>();
+
+	/**
+	 * @param seedUrls urls of one or more nodes of the cluster.
+	 * @param password password of the cluster, or null to use the password of the first url.
+	 * @param timeout connection and socket timeout.
+	 * @param config settings of the connection pool of each node.
+	 * @param executor runs the pipelines of the nodes concurrently.
+	 * @param metrics records the connections that are replaced after a failure.
+	 * @throws URISyntaxException if an url is invalid.
+	 */
+	RedisCluster(String[] seedUrls, String password, int timeout, JedisPoolConfig config, ExecutorService executor, RedisMetrics metrics) throws URISyntaxException {
+		for (String seedUrl : seedUrls) {
+			seeds.add(new URI(seedUrl.trim()));
+		}
+		this.scheme = seeds.get(0).getScheme();
+		this.password = (password != null) ? password : JedisURIHelper.getPassword(seeds.get(0));
+		this.timeout = timeout;
+		this.config = config;
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Reads the slot map from the first node that answers, trying the known nodes before the seed nodes.
+	 */
+	synchronized void refresh() throws URISyntaxException {
+		List<URI> candidates = new ArrayList<URI>();
+		for (String node : nodes.keySet()) {
+			candidates.add(new URI(scheme + "://" + node));
+		}
+		candidates.addAll(seeds);
+
+		JedisConnectionException failure = null;
+		for (URI candidate : candidates) {
+			Jedis jedis = new Jedis(candidate, timeout);
+			try {
+				if (password != null) {
+					jedis.auth(password);
+				}
+				updateSlots(jedis.clusterSlots());
+				return;
+			} catch (JedisConnectionException e) {
+				LOGGER.debug("Cluster node " + candidate + " is not reachable", e);
+				failure = e;
+			} finally {
+				jedis.close();
+			}
+		}
+		throw new JedisNoReachableClusterNodeException("No reachable node in cluster " + seeds, failure);
+	}
+
+	private void updateSlots(List<Object> ranges) throws URISyntaxException {
+		RedisConnectionPool[] newSlots = new RedisConnectionPool[SLOTS];
+		for (Object range : ranges) {
+			List<?> info = (List<?>) range;
+			int first = ((Long) info.get(0)).intValue();
+			int last = ((Long) info.get(1)).intValue();
+			// The first node of a range is its master.
+			List<?> master = (List<?>) info.get(2);
+			RedisConnectionPool pool = getNode(new HostAndPort(SafeEncoder.encode((byte[]) master.get(0)), ((Long) master.get(1)).intValue()));
+			for (int slot = first; slot <= last; slot++) {
+				newSlots[slot] = pool;
+			}
+		}
+		slots = newSlots;
+		// A batch that still uses one of these pools is sent again after a refresh.
+		for (RedisConnectionPool pool : retired) {
+			RedisConnectionPool.release(pool);
+		}
+		retired.clear();
+		// Nodes that no longer own slots, for example removed or demoted masters, are released at the next refresh.
+		List<RedisConnectionPool> masters = getMasters();
+		Iterator<Map.Entry<String, RedisConnectionPool>> iterator = nodes.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, RedisConnectionPool> node = iterator.next();
+			if (!masters.contains(node.getValue())) {
+				LOGGER.debug("Cluster node " + node.getKey() + " no longer owns slots");
+				retired.add(node.getValue());
+				iterator.remove();
+			}
+		}
+		LOGGER.debug("Cluster slot map refreshed, " + nodes.size() + " nodes");
+	}
+
+	/**
+	 * Returns the pool of a node, creating it if the node is new.
+	 */
+	synchronized RedisConnectionPool getNode(HostAndPort node) throws URISyntaxException {
+		String name = node.getHost() + ":" + node.getPort();
+		RedisConnectionPool pool = nodes.get(name);
+		if (pool == null) {
+			pool = RedisConnectionPool.acquire(scheme + "://" + name, password, timeout, config);
+			nodes.put(name, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the pool of the master that owns the slot of a key.
+	 */
+	RedisConnectionPool getPool(byte[] key) throws URISyntaxException {
+		int slot = JedisClusterCRC16.getSlot(key);
+		RedisConnectionPool pool = slots[slot];
+		if (pool == null) {
+			refresh();
+			pool = slots[slot];
+			if (pool == null) {
+				throw new JedisNoReachableClusterNodeException("Slot " + slot + " is not served by the cluster");
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the pool of any master of the cluster.
+	 */
+	synchronized RedisConnectionPool getAnyPool() throws URISyntaxException {
+		if (nodes.isEmpty()) {
+			refresh();
+		}
+		return nodes.values().iterator().next();
+	}
+
+	/**
+	 * Returns the pools of all masters that currently own slots.
+	 */
+	List<RedisConnectionPool> getMasters() {
+		List<RedisConnectionPool> masters = new ArrayList<RedisConnectionPool>();
+		for (RedisConnectionPool pool : slots) {
+			if (pool != null && !masters.contains(pool)) {
+				masters.add(pool);
+			}
+		}
+		return masters;
+	}
+
+	/**
+	 * Sends the command for every batch element to the node that owns its key,
+	 * one pipeline per node, and stores the replies in <code>results</code>.
+	 * @param keys the key of each batch element.
+	 * @param command the command to send.
+	 * @param results receives the reply of each batch element.
+	 */
+	<T> void execute(byte[][] keys, PipelineCommand<T> command, Object[] results) throws Exception {
+		int[] pending = new int[keys.length];
+		for (int i = 0; i < pending.length; i++) {
+			pending[i] = i;
+		}
+		int pendingCount = pending.length;
+
+		for (int attempt = 0; pendingCount > 0; attempt++) {
+			if (attempt == MAX_ATTEMPTS) {
+				refresh();
+				throw new JedisConnectionException("Too many cluster redirections for " + pendingCount + " commands");
+			}
+			if (attempt > 0) {
+				Thread.sleep(RETRY_DELAY << (attempt - 1));
+			}
+
+			Map<RedisConnectionPool, NodeBatch<T>> batches = new LinkedHashMap<RedisConnectionPool, NodeBatch<T>>();
+			for (int i = 0; i < pendingCount; i++) {
+				RedisConnectionPool pool = getPool(keys[pending[i]]);
+				NodeBatch<T> batch = batches.get(pool);
+				if (batch == null) {
+					batch = new NodeBatch<T>(pool, command, results, pendingCount);
+					batches.put(pool, batch);
+				}
+				batch.add(pending[i]);
+			}
+
+			// The first node runs on the calling thread, the others concurrently.
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batches.size());
+			NodeBatch<T> local = null;
+			for (NodeBatch<T> batch : batches.values()) {
+				if (local == null) {
+					local = batch;
+				} else {
+					futures.add(executor.submit(batch));
+				}
+			}
+			boolean refresh = local.call();
+			for (Future<Boolean> future : futures) {
+				try {
+					refresh |= future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw (Exception) cause;
+				}
+			}
+
+			pendingCount = 0;
+			for (NodeBatch<T> batch : batches.values()) {
+				for (int i = 0; i < batch.retryCount; i++) {
+					pending[pendingCount++] = batch.retries[i];
+				}
+			}
+			if (refresh) {
+				refresh();
+			}
+		}
+	}
+
+	/**
+	 * Releases the pools of all nodes.
+	 */
+	synchronized void close() {
+		for (RedisConnectionPool pool : nodes.values()) {
+			RedisConnectionPool.release(pool);
+		}
+		nodes.clear();
+		for (RedisConnectionPool pool : retired) {
+			RedisConnectionPool.release(pool);
+		}
+		retired.clear();
+		slots = new RedisConnectionPool[SLOTS];
+	}
+
+	/**
+	 * The batch elements of one node. Returns true if the slot map must be refreshed.
+	 */
+	private final class NodeBatch<T> implements Callable<Boolean> {
+		private final RedisConnectionPool pool;
+		private final PipelineCommand<T> command;
+		private final Object[] results;
+		private final int[] indexes;
+		private int count = 0;
+		private final int[] retries;
+		private int retryCount = 0;
+
+		NodeBatch(RedisConnectionPool pool, PipelineCommand<T> command, Object[] results, int capacity) {
+			this.pool = pool;
+			this.command = command;
+			this.results = results;
+			this.indexes = new int[capacity];
+			this.retries = new int[capacity];
+		}
+
+		void add(int index) {
+			indexes[count++] = index;
+		}
+
+		@Override
+		public Boolean call() throws Exception {
+			List<Response<T>> responses;
+			Jedis jedis;
+			try {
+				jedis = pool.getResource();
+			} catch (JedisConnectionException e) {
+				if (pool.isClosed()) {
+					// The node lost its slots while the batch was routed to it.
+					LOGGER.debug("Cluster node was released, refreshing the slot map", e);
+				} else {
+					LOGGER.warn("Cluster node is not reachable, refreshing the slot map", e);
+				}
+				System.arraycopy(indexes, 0, retries, 0, count);
+				retryCount = count;
+				return Boolean.TRUE;
+			}
+			try {
+				responses = command.send(jedis, indexes, count);
+			} catch (JedisConnectionException e) {
+				if (!command.isIdempotent()) {
+					// Some commands of the pipeline may have run, so it must not be sent again.
+					throw e;
+				}
+				LOGGER.warn("Cluster node failed, refreshing the slot map", e);
+				metrics.reconnected();
+				System.arraycopy(indexes, 0, retries, 0, count);
+				retryCount = count;
+				return Boolean.TRUE;
+			} finally {
+				jedis.close();
+			}
+
+			boolean moved = false;
+			for (int i = 0; i < count; i++) {
+				try {
+					results[indexes[i]] = command.reply(responses.get(i));
+				} catch (JedisMovedDataException e) {
+					moved = true;
+					retries[retryCount++] = indexes[i];
+				} catch (JedisAskDataException e) {
+					results[indexes[i]] = ask(e.getTargetNode(), indexes[i]);
+				}
+			}
+			return Boolean.valueOf(moved);
+		}
+
+		private Object ask(HostAndPort target, int index) throws URISyntaxException {
+			Jedis jedis = getNode(target).getResource();
+			try {
+				jedis.asking();
+				return command.reply(command.send(jedis, new int[] { index }, 1).get(0));
+			} finally {
+				jedis.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.util.JedisURIHelper;
+
+/**
+ * Connection pool to one REDIS server that is shared by all operators of a PE
+ * which connect with the same url, password and connection timeout.
+ * <p>The pools are reference counted: {@link #acquire} creates a pool on first use,
+ * {@link #release} closes it when the last operator using it shuts down.
+ * The pool settings of the first operator that creates a pool are used.</p>
+ * <p>An operator that reconnects to the same server gets the same pool back,
+ * so it calls {@link #clearIdle()} to close the idle connections that the failure may have broken.</p>
+ */
+final class RedisConnectionPool {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisConnectionPool.class);
+
+	private static final Map<String, RedisConnectionPool> POOLS = new HashMap<String, RedisConnectionPool>();
+
+	private final String poolKey;
+	private final SharedJedisPool pool;
+	private int references = 0;
+
+	/**
+	 * Pool that can close its idle connections without closing the connections in use.
+	 */
+	private static final class SharedJedisPool extends JedisPool {
+
+		SharedJedisPool(JedisPoolConfig config, String host, int port, int timeout, String password, int database, boolean ssl) {
+			super(config, host, port, timeout, password, database, ssl);
+		}
+
+		void clearIdle() {
+			internalPool.clear();
+		}
+	}
+
+	private RedisConnectionPool(String poolKey, SharedJedisPool pool) {
+		this.poolKey = poolKey;
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the pool for the given connection settings, creating it if it does not exist yet.
+	 * Every call must be matched by a call of {@link #release}.
+	 * @param redisUrl url of the REDIS server, redis://[:password@]host[:port][/database]
+	 * @param password password of the REDIS server, or null to use the password of the url.
+	 * @param timeout connection and socket timeout.
+	 * @param config pool settings used if the pool is created.
+	 * @throws URISyntaxException if the url is invalid.
+	 */
+	static synchronized RedisConnectionPool acquire(String redisUrl, String password, int timeout, JedisPoolConfig config) throws URISyntaxException {
+		String poolKey = redisUrl + '\u0000' + password + '\u0000' + timeout;
+		RedisConnectionPool connectionPool = POOLS.get(poolKey);
+		if (connectionPool == null) {
+			URI uri = new URI(redisUrl);
+			if (!JedisURIHelper.isValid(uri)) {
+				throw new URISyntaxException(redisUrl, "Expected redis://<server>:<port>");
+			}
+			int port = (uri.getPort() > 0) ? uri.getPort() : Protocol.DEFAULT_PORT;
+			String poolPassword = (password != null) ? password : JedisURIHelper.getPassword(uri);
+			SharedJedisPool pool = new SharedJedisPool(config, uri.getHost(), port, timeout, poolPassword,
+					JedisURIHelper.getDBIndex(uri), JedisURIHelper.isRedisSSLScheme(uri));
+			connectionPool = new RedisConnectionPool(poolKey, pool);
+			POOLS.put(poolKey, connectionPool);
+			LOGGER.debug("Created connection pool for " + uri.getHost() + ":" + port);
+		}
+		connectionPool.references++;
+		return connectionPool;
+	}
+
+	/**
+	 * Releases a pool returned by {@link #acquire}. The pool is closed when it is no longer used.
+	 */
+	static synchronized void release(RedisConnectionPool connectionPool) {
+		if (--connectionPool.references == 0) {
+			POOLS.remove(connectionPool.poolKey);
+			connectionPool.pool.close();
+			LOGGER.debug("Closed connection pool");
+		}
+	}
+
+	/**
+	 * Borrows a connection from the pool. The connection is returned to the pool by {@link Jedis#close()}.
+	 */
+	Jedis getResource() {
+		return pool.getResource();
+	}
+
+	/**
+	 * Returns true if the pool was closed by the last {@link #release}.
+	 */
+	boolean isClosed() {
+		return pool.isClosed();
+	}
+
+	/**
+	 * Closes the idle connections of the pool. Connections in use are returned to the pool as usual;
+	 * a connection that failed is closed when it is returned.
+	 */
+	void clearIdle() {
+		pool.clearIdle();
+		LOGGER.debug("Closed idle connections of connection pool");
+	}
+}
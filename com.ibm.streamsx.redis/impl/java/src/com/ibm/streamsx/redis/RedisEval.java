@@ -0,0 +1,351 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.model.InputPortSet;
+import com.ibm.streams.operator.model.InputPortSet.WindowMode;
+import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
+import com.ibm.streams.operator.model.InputPorts;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Operator that runs a Lua script in REDIS database for each tuple.
+ * <p>The script is loaded with SCRIPT LOAD when the operator initializes and then run by its
+ * SHA1 digest with EVALSHA, pipelined across a batch. If a node does not know the script,
+ * for example after a restart or a failover, the affected tuples are run with EVAL, which
+ * also caches the script on that node.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisEval", namespace="com.ibm.streamsx.redis",
+description="The **RedisEval** operator runs a Lua script in REDIS database for each tuple that arrives on its input port. \\n\\n"
+            + "The script is given with **script** or **scriptFile** and is loaded with SCRIPT LOAD when the operator initializes. "
+            + "For each tuple it is run with EVALSHA: the attributes **keyAttrs** are passed as KEYS and the attributes **argAttrs** as ARGV, "
+            + "rstring and blob attributes as raw bytes and all other attributes in their string form. "
+            + "The script runs atomically, so read-modify-write logic on a key costs one command. \\n\\n"
+            + "If a node replies NOSCRIPT, the tuples are run again with EVAL, which loads the script on that node. "
+            + "A batch is not sent again after a connection failure unless **idempotent** is true, so a script never runs twice by default. \\n\\n"
+            + "If the output port is present, each tuple is submitted with the return value of the script in **resultAttr**. "
+            + "Integer and string return values are converted to the type of the attribute as by **RedisHGet**; "
+            + "a nil return value leaves numeric attributes unchanged. \\n\\n"
+            + "If **batchSize** is greater than 1, the scripts of up to **batchSize** tuples are run with one pipelined round-trip. "
+            + "With **clusterMode** all keys of a tuple must be in the same hash slot; the command is routed by the first key. \\n")
+@InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
+@OutputPorts({@OutputPortSet(description="Port that produces the tuples with the return value of the script", cardinality=1, optional=true, windowPunctuationOutputMode=WindowPunctuationOutputMode.Preserving)})
+public class RedisEval extends AbstractRedisBatchOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisEval.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	// Result of an EVALSHA command that was rejected with NOSCRIPT.
+	private static final Object NOSCRIPT = new Object();
+
+	// These parameters specify the script.
+	private String script = null;
+	private String scriptFile = null;
+
+	// These parameters specify the attributes passed to and returned by the script.
+	private List<String> keyAttrs = null;
+	private List<String> argAttrs = null;
+	private String resultAttr = null;
+	// This parameter specifies if a script may run twice for a tuple.
+	private boolean idempotent = false;
+
+	private byte[] scriptBytes = null;
+	private byte[] sha = null;
+	private AttributeCodec[] keyCodecs = null;
+	private AttributeCodec[] argCodecs = null;
+	private AttributeCodec resultCodec = null;
+
+	//Parameter script
+	@Parameter(name = "script", optional = true,
+			description = "This optional parameter specifies the source of the Lua script. Either **script** or **scriptFile** is required."
+			)
+	public void setScript(String script){
+		this.script = script;
+	}
+
+	//Parameter scriptFile
+	@Parameter(name = "scriptFile", optional = true,
+			description = "This optional parameter specifies the file of the Lua script. A relative path is relative to the application directory."
+			)
+	public void setScriptFile(String scriptFile){
+		this.scriptFile = scriptFile;
+	}
+
+	//Parameter keyAttrs
+	@Parameter(name = "keyAttrs", optional = true,
+			description = "This optional parameter specifies the names of the input attributes that are passed as KEYS. "
+			+ "The default is 'keyAttr' if it is set, otherwise no keys are passed."
+			)
+	public void setKeyAttrs(List<String> keyAttrs){
+		this.keyAttrs = keyAttrs;
+	}
+
+	//Parameter argAttrs
+	@Parameter(name = "argAttrs", optional = true,
+			description = "This optional parameter specifies the names of the input attributes that are passed as ARGV."
+			)
+	public void setArgAttrs(List<String> argAttrs){
+		this.argAttrs = argAttrs;
+	}
+
+	//Parameter resultAttr
+	@Parameter(name = "resultAttr", optional = true,
+			description = "This optional parameter specifies the name of the output attribute that receives the return value of the script."
+			)
+	public void setResultAttr(String resultAttr){
+		this.resultAttr = resultAttr;
+	}
+
+	//Parameter idempotent
+	@Parameter(name = "idempotent", optional = true,
+			description = "This optional parameter specifies if the script can safely run more than once for the same tuple. "
+			+ "If true, a batch that fails because REDIS database is not reachable is sent again after the operator reconnected, "
+			+ "so the scripts of tuples that already ran before the failure run twice. "
+			+ "The default value is false: the batch is sent only once and a connection failure fails the operator, "
+			+ "because it is unknown which scripts ran."
+			)
+	public void setIdempotent(boolean idempotent){
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the attributes and loads the script.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if ((script == null) == (scriptFile == null)) {
+			throw new IllegalArgumentException("Either parameter script or scriptFile is required by RedisEval");
+		}
+		if (script != null) {
+			scriptBytes = script.getBytes(UTF8);
+		} else {
+			File file = new File(scriptFile);
+			if (!file.isAbsolute()) {
+				file = new File(context.getPE().getApplicationDirectory(), scriptFile);
+			}
+			scriptBytes = readFile(file);
+		}
+
+		StreamSchema schema = getInput(0).getStreamSchema();
+		List<String> keys = keyAttrs;
+		if (keys == null) {
+			keys = keyAttr != null ? Collections.singletonList(keyAttr) : Collections.<String>emptyList();
+		}
+		keyCodecs = codecs(schema, keys);
+		argCodecs = codecs(schema, argAttrs != null ? argAttrs : Collections.<String>emptyList());
+		if (resultAttr != null) {
+			if (context.getNumberOfStreamingOutputs() == 0) {
+				throw new IllegalArgumentException("Parameter resultAttr requires the output port");
+			}
+			resultCodec = AttributeCodec.forField(getOutput(0).getStreamSchema(), resultAttr);
+		}
+
+		List<Jedis> connections = getMasterConnections();
+		try {
+			for (Jedis jedis : connections) {
+				sha = jedis.scriptLoad(scriptBytes);
+			}
+		} finally {
+			for (Jedis jedis : connections) {
+				jedis.close();
+			}
+		}
+		LOGGER.info("Loaded script " + new String(sha, UTF8) + " on " + connections.size() + " node(s)");
+	}
+
+	private static AttributeCodec[] codecs(StreamSchema schema, List<String> names) {
+		AttributeCodec[] codecs = new AttributeCodec[names.size()];
+		for (int i = 0; i < codecs.length; i++) {
+			codecs[i] = AttributeCodec.forAttribute(schema, names.get(i));
+		}
+		return codecs;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+    /**
+     * Process an incoming tuple that arrived on the specified port.
+     * @param inputStream Port the tuple is arriving on.
+     * @param tuple Object representing the incoming tuple.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
+            throws Exception {
+    	if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
+    }
+
+    /**
+     * Sends one EVALSHA command per tuple, pipelined, and runs the tuples that
+     * were rejected with NOSCRIPT again with EVAL.
+     * @param tuples the tuples of the batch in arrival order.
+     * @return the return value of the script for each tuple.
+     */
+    @Override
+    protected List<?> executeBatch(List<Tuple> tuples) throws Exception {
+    	final int size = tuples.size();
+    	final byte[][] routes = new byte[size][];
+    	final List<List<byte[]>> keys = new ArrayList<List<byte[]>>(size);
+    	final List<List<byte[]>> args = new ArrayList<List<byte[]>>(size);
+    	for (int i = 0; i < size; i++) {
+    		Tuple tuple = tuples.get(i);
+    		keys.add(encode(keyCodecs, tuple));
+    		args.add(encode(argCodecs, tuple));
+    		// A script without keys can run on any node.
+    		routes[i] = keyCodecs.length > 0 ? keys.get(i).get(0) : EMPTY;
+    	}
+    	List<Object> results = executePipelined(routes, new PipelineCommand<Object>() {
+    		@Override
+    		Response<Object> queue(Pipeline pipeline, int index) {
+    			return pipeline.evalsha(sha, keys.get(index), args.get(index));
+    		}
+
+    		@Override
+    		boolean isIdempotent() {
+    			return idempotent;
+    		}
+
+    		@Override
+    		Object reply(Response<Object> response) {
+    			try {
+    				return response.get();
+    			} catch (JedisDataException e) {
+    				if (e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT")) {
+    					return NOSCRIPT;
+    				}
+    				throw e;
+    			}
+    		}
+    	});
+
+    	int missing = 0;
+    	final int[] indexes = new int[size];
+    	for (int i = 0; i < size; i++) {
+    		if (results.get(i) == NOSCRIPT) {
+    			indexes[missing++] = i;
+    		}
+    	}
+    	if (missing == 0) {
+    		return results;
+    	}
+    	LOGGER.info("Script is not loaded on a node, running " + missing + " tuple(s) with EVAL");
+    	byte[][] missingRoutes = new byte[missing][];
+    	for (int m = 0; m < missing; m++) {
+    		missingRoutes[m] = routes[indexes[m]];
+    	}
+    	List<Object> evaluated = executePipelined(missingRoutes, new PipelineCommand<Object>() {
+    		@Override
+    		Response<Object> queue(Pipeline pipeline, int index) {
+    			return pipeline.eval(scriptBytes, keys.get(indexes[index]), args.get(indexes[index]));
+    		}
+
+    		@Override
+    		boolean isIdempotent() {
+    			return idempotent;
+    		}
+    	});
+    	// The list of executePipelined has a fixed size, but can be modified.
+    	for (int m = 0; m < missing; m++) {
+    		results.set(indexes[m], evaluated.get(m));
+    	}
+    	return results;
+    }
+
+    private static List<byte[]> encode(AttributeCodec[] codecs, Tuple tuple) {
+    	byte[][] values = new byte[codecs.length][];
+    	for (int i = 0; i < values.length; i++) {
+    		values[i] = codecs[i].encode(tuple);
+    	}
+    	return Arrays.asList(values);
+    }
+
+    /**
+     * Submits the tuples of a batch with the return value of the script to the optional output port in input order.
+     * @param tuples the tuples of the batch in arrival order.
+     * @param results the results returned by {@link #executeBatch(List)}.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> results) throws Exception {
+    	if (getOperatorContext().getNumberOfStreamingOutputs() == 0) {
+    		return;
+    	}
+        StreamingOutput<OutputTuple> outStream = getOutput(0);
+        for (int i = 0; i < tuples.size(); i++) {
+        	OutputTuple outTuple = outStream.newTuple();
+        	// Copy across all matching attributes.
+        	outTuple.assign(tuples.get(i));
+        	if (resultCodec != null) {
+        		resultCodec.decode(outTuple, toBytes(results.get(i)));
+        	}
+        	outStream.submit(outTuple);
+        }
+    }
+
+    /**
+     * Converts an integer, string or status reply of a script to bytes.
+     * @throws IllegalArgumentException if the script returned an array.
+     */
+    private byte[] toBytes(Object result) {
+    	if (result == null || result instanceof byte[]) {
+    		return (byte[]) result;
+    	}
+    	if (result instanceof Long) {
+    		return result.toString().getBytes(UTF8);
+    	}
+    	throw new IllegalArgumentException("The script returned an array, which cannot be assigned to attribute '" + resultAttr + "'");
+    }
+}
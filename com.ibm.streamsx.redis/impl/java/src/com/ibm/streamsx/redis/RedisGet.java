@@ -2,6 +2,11 @@
 package com.ibm.streamsx.redis;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import com.ibm.streams.operator.AbstractOperator;
@@ -11,6 +16,8 @@ import com.ibm.streams.operator.StreamingData.Punctuation;
 import com.ibm.streams.operator.StreamingInput;
 import com.ibm.streams.operator.StreamingOutput;
 import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.metrics.OperatorMetrics;
 import com.ibm.streams.operator.model.InputPortSet;
 import com.ibm.streams.operator.model.InputPortSet.WindowMode;
 import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
@@ -18,7 +25,14 @@ import com.ibm.streams.operator.model.InputPorts;
 import com.ibm.streams.operator.model.OutputPortSet;
 import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
 import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
 import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 /**
  * Class for an operator that receives a tuple and then optionally submits a tuple. 
@@ -39,13 +53,187 @@ import com.ibm.streams.operator.model.PrimitiveOperator;
  * <p>With the exception of operator initialization, all the other events may occur concurrently with each other, 
  * which lead to these methods being called concurrently by different threads.</p> 
  */
+@SharedLoader
 @PrimitiveOperator(name="RedisGet", namespace="com.ibm.streamsx.redis",
 description="The **RedisGet** operator reads the value of key from REDIS database. \\n\\n"
-            + "This operator get tuples 'keyAttr' that arrive on its input port  \\n")
+            + "This operator get tuples 'keyAttr' that arrive on its input port  \\n\\n"
+            + "The value is written to the first attribute of the output port, which can be of type rstring, ustring or blob. "
+            + "Keys and values are handled as raw bytes, so binary keys and values are supported; a missing key produces an empty value. \\n\\n"
+            + "If **batchSize** is greater than 1, the keys of up to **batchSize** tuples are looked up with one round-trip, "
+            + "either with a single MGET command or with pipelined GET commands, as selected by **lookupMode**. "
+            + "With **clusterMode** the keys are always read with pipelined GET commands, one pipeline per cluster node. "
+            + "The output tuples are submitted in input order. \\n\\n"
+            + "With **cacheSize** the operator keeps a near-cache of hot keys, optionally kept coherent by **cacheInvalidation**. \\n\\n"
+            + "With **replicaUrls** the lookups are spread across replicas of the server, preferring the replicas that respond faster. "
+            + "A replica is skipped while it lags behind the primary by more than **maxReplicationLag** bytes, "
+            + "or after a lookup from it failed, and the lookups fall back to the primary. "
+            + "Values read from a replica may be slightly older than the values of the primary. \\n")
 @InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious), @InputPortSet(description="Optional input ports", optional=true, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
 @OutputPorts({@OutputPortSet(description="Port that produces tuples", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating), @OutputPortSet(description="Optional output ports", optional=true, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating)})
-public class RedisGet extends AbstractRedisOperator {
-	
+public class RedisGet extends AbstractRedisBatchOperator {
+
+	public static final String LOOKUP_MODE_MGET = "mget";
+	public static final String LOOKUP_MODE_PIPELINE = "pipeline";
+
+	// This parameter specifies how the keys of a batch are looked up.
+	private String lookupMode = LOOKUP_MODE_MGET;
+
+	//Parameter lookupMode
+	@Parameter(name = "lookupMode", optional = true,
+			description = "This optional parameter specifies how the keys of a batch are looked up when **batchSize** is greater than 1. "
+			+ "`mget` (the default) sends all keys of a batch in one MGET command. "
+			+ "`pipeline` sends one GET command per key in a single pipelined round-trip, which avoids one large command blocking the server. "
+			+ "In cluster mode `pipeline` is always used."
+			)
+	public void setLookupMode(String lookupMode){
+		this.lookupMode = lookupMode;
+	}
+
+	// These parameters specify the near-cache of the operator.
+	private int cacheSize = 0;
+	private String cacheEviction = NearCache.EVICTION_LRU;
+	private long cacheTtl = 0;
+	private boolean cacheMissingKeys = false;
+	private String cacheInvalidation = NearCacheInvalidator.INVALIDATION_NONE;
+
+	private NearCache cache = null;
+	private NearCacheInvalidator invalidator = null;
+
+	// These parameters specify the replicas that serve lookups.
+	private List<String> replicaUrls = null;
+	private long maxReplicationLag = 1048576;
+	private long replicaCheckInterval = 1000;
+
+	private ReplicaRouter replicas = null;
+
+	// The value is written to the first output attribute.
+	private AttributeCodec outputCodec = null;
+
+	//Parameter cacheSize
+	@Parameter(name = "cacheSize", optional = true,
+			description = "This optional parameter specifies the maximum number of keys that are cached in the operator. "
+			+ "Lookups of cached keys are answered without a round-trip to REDIS database. "
+			+ "The default value is 0, which disables the cache."
+			)
+	public void setCacheSize(int cacheSize){
+		this.cacheSize = cacheSize;
+	}
+
+	//Parameter cacheEviction
+	@Parameter(name = "cacheEviction", optional = true,
+			description = "This optional parameter specifies which key is evicted when the cache is full. "
+			+ "`lru` (the default) evicts the least recently used key, `lfu` evicts an approximately least frequently used key."
+			)
+	public void setCacheEviction(String cacheEviction){
+		this.cacheEviction = cacheEviction;
+	}
+
+	//Parameter cacheTtl
+	@Parameter(name = "cacheTtl", optional = true,
+			description = "This optional parameter specifies the time in milliseconds after which a cached key expires. "
+			+ "The default value is 0, which keeps keys until they are evicted or invalidated."
+			)
+	public void setCacheTtl(long cacheTtl){
+		this.cacheTtl = cacheTtl;
+	}
+
+	//Parameter cacheMissingKeys
+	@Parameter(name = "cacheMissingKeys", optional = true,
+			description = "This optional parameter specifies if keys that do not exist in REDIS database are cached as well. The default value is false."
+			)
+	public void setCacheMissingKeys(boolean cacheMissingKeys){
+		this.cacheMissingKeys = cacheMissingKeys;
+	}
+
+	//Parameter cacheInvalidation
+	@Parameter(name = "cacheInvalidation", optional = true,
+			description = "This optional parameter specifies how cached keys are invalidated when they change in REDIS database. \\n\\n"
+			+ "  **none**, the default, cached keys are only removed by **cacheTtl** and eviction.\\n\\n"
+			+ "  **tracking**, a side connection receives the invalidation messages of CLIENT TRACKING. Requires REDIS 6 or later.\\n\\n"
+			+ "  **keyspace**, a side connection subscribes to keyspace notifications. "
+			+ "The server must be configured with `notify-keyspace-events` that include `K` and the events of the cached keys.\\n\\n"
+			+ "Invalidation is not supported with **clusterMode**, because the side connection reaches a single node only. "
+			+ "With **replicaUrls**, values read from a replica are not cached if invalidation is enabled, "
+			+ "because a lagging replica may return a value that was already invalidated.\\n"
+			)
+	public void setCacheInvalidation(String cacheInvalidation){
+		this.cacheInvalidation = cacheInvalidation;
+	}
+
+	//Parameter replicaUrls
+	@Parameter(name = "replicaUrls", optional = true,
+			description = "This optional parameter specifies the urls of replicas of the server **redisUrl**, in the same format. "
+			+ "Lookups that miss the cache are sent to one of the replicas, chosen with a probability inversely proportional "
+			+ "to the moving average of its response time. Not supported with **clusterMode**."
+			)
+	public void setReplicaUrls(List<String> replicaUrls){
+		this.replicaUrls = replicaUrls;
+	}
+
+	//Parameter maxReplicationLag
+	@Parameter(name = "maxReplicationLag", optional = true,
+			description = "This optional parameter specifies how many bytes the replication offset of a replica may lag behind the primary "
+			+ "before lookups are no longer sent to it. The default value is 1048576."
+			)
+	public void setMaxReplicationLag(long maxReplicationLag){
+		this.maxReplicationLag = maxReplicationLag;
+	}
+
+	//Parameter replicaCheckInterval
+	@Parameter(name = "replicaCheckInterval", optional = true,
+			description = "This optional parameter specifies the interval in milliseconds at which the replication lag and link status "
+			+ "of the replicas are checked. A replica receives lookups only after its first successful check, "
+			+ "and a replica that failed a lookup is used again after the next successful check. "
+			+ "The default value is 1000."
+			)
+	public void setReplicaCheckInterval(long replicaCheckInterval){
+		this.replicaCheckInterval = replicaCheckInterval;
+	}
+
+    /**
+     * Initialize this operator. Creates the near-cache and its invalidation listener.
+     * @param context OperatorContext for this operator.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (keyCodec == null) {
+			throw new IllegalArgumentException("Parameter keyAttr is required by RedisGet");
+		}
+		if (!LOOKUP_MODE_MGET.equals(lookupMode) && !LOOKUP_MODE_PIPELINE.equals(lookupMode)) {
+			throw new IllegalArgumentException("Invalid lookupMode '" + lookupMode + "', expected " + LOOKUP_MODE_MGET + " or " + LOOKUP_MODE_PIPELINE);
+		}
+		outputCodec = AttributeCodec.forOutput(getOutput(0).getStreamSchema(), 0);
+		if (cacheSize > 0) {
+			OperatorMetrics metrics = context.getMetrics();
+			cache = new NearCache(cacheSize, cacheEviction, cacheTtl, cacheMissingKeys,
+					metrics.createCustomMetric("nCacheHits", "Number of lookups answered by the cache", Metric.Kind.COUNTER),
+					metrics.createCustomMetric("nCacheMisses", "Number of lookups sent to REDIS database", Metric.Kind.COUNTER),
+					metrics.createCustomMetric("nCacheEvictions", "Number of keys evicted because the cache was full", Metric.Kind.COUNTER));
+			if (!NearCacheInvalidator.INVALIDATION_NONE.equals(cacheInvalidation)) {
+				if (isClusterMode()) {
+					throw new IllegalArgumentException("Parameter cacheInvalidation is not supported with clusterMode");
+				}
+				invalidator = new NearCacheInvalidator(this, cache, cacheInvalidation, context.getThreadFactory());
+				invalidator.start();
+			}
+		}
+		if (replicaUrls != null && !replicaUrls.isEmpty()) {
+			if (isClusterMode()) {
+				throw new IllegalArgumentException("Parameter replicaUrls is not supported with clusterMode");
+			}
+			if (replicaCheckInterval <= 0) {
+				throw new IllegalArgumentException("Parameter replicaCheckInterval must be greater than 0: " + replicaCheckInterval);
+			}
+			OperatorMetrics metrics = context.getMetrics();
+			replicas = new ReplicaRouter(this, replicaUrls, maxReplicationLag, replicaCheckInterval, context.getScheduledExecutorService(),
+					metrics.createCustomMetric("nReplicaReads", "Number of lookups answered by a replica", Metric.Kind.COUNTER),
+					metrics.createCustomMetric("nReplicaFallbacks", "Number of lookups sent to the primary because no replica was available", Metric.Kind.COUNTER));
+		}
+	}
+
     /**
      * Initialize this operator. Called once before any tuples are processed.
      * @param context OperatorContext for this operator.
@@ -89,32 +277,161 @@ public class RedisGet extends AbstractRedisOperator {
     @Override
     public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
             throws Exception {
-       	String key = null;
-       	String value = null;
-  
-       	if (keyAttr != null) {
-			key = tuple.getString(keyAttr);
-		}
- 
-       	value = jedis.get(key);	    
-	
-    	// Create a new tuple for output port 0
-        StreamingOutput<OutputTuple> outStream = getOutput(0);
-        OutputTuple outTuple = outStream.newTuple();
-        // Copy across all matching attributes.
-        outTuple.assign(tuple);
-        outTuple.setString(0, value);
-
-        // Submit new tuple to output port 0
-        outStream.submit(outTuple);
+    	if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
     }
-    
+
     /**
-     * Process an incoming punctuation that arrived on the specified port.
-     * @param stream Port the punctuation is arriving on.
-     * @param mark The punctuation mark
+     * Looks up the keys of a batch with one round-trip.
+     * Keys found in the cache are not sent to REDIS database.
+     * @param tuples the tuples of the batch in arrival order.
+     * @return the value of each key, in input order.
      * @throws Exception Operator failure, will cause the enclosing PE to terminate.
      */
+    @Override
+    protected List<?> executeBatch(List<Tuple> tuples) throws Exception {
+    	byte[][] keys = new byte[tuples.size()][];
+    	byte[][] values = new byte[keys.length][];
+    	// Indexes of the keys that must be read from REDIS.
+    	int[] misses = new int[keys.length];
+    	int missCount = 0;
+    	for (int i = 0; i < keys.length; i++) {
+    		keys[i] = keyCodec.encode(tuples.get(i));
+    		NearCache.Entry entry = (cache != null) ? cache.get(keys[i]) : null;
+    		if (entry != null) {
+    			values[i] = entry.value;
+    		} else {
+    			misses[missCount++] = i;
+    		}
+    	}
+
+    	if (missCount > 0) {
+    		long cacheVersion = (cache != null) ? cache.version() : 0;
+    		final byte[][] missedKeys = new byte[missCount][];
+    		for (int i = 0; i < missCount; i++) {
+    			missedKeys[i] = keys[misses[i]];
+    		}
+    		PipelineCommand<byte[]> get = new PipelineCommand<byte[]>() {
+    			@Override
+    			Response<byte[]> queue(Pipeline pipeline, int index) {
+    				return pipeline.get(missedKeys[index]);
+    			}
+    		};
+    		List<byte[]> missedValues = (replicas != null) ? readFromReplica(missedKeys, get) : null;
+    		// A lagging replica may return a value whose invalidation was already applied to the cache.
+    		boolean cacheable = missedValues == null || invalidator == null;
+    		if (missedValues == null) {
+    			if (missCount > 1 && LOOKUP_MODE_MGET.equals(lookupMode) && !isClusterMode()) {
+    				missedValues = mget(missedKeys);
+    			} else {
+    				// Keys of different hash slots cannot be read with one MGET in a cluster.
+    				missedValues = executePipelined(missedKeys, get);
+    			}
+    		}
+    		for (int i = 0; i < missCount; i++) {
+    			values[misses[i]] = missedValues.get(i);
+    		}
+    		if (cache != null && cacheable) {
+    			for (int i = 0; i < missCount; i++) {
+    				cache.put(keys[misses[i]], values[misses[i]], cacheVersion);
+    			}
+    		}
+    	}
+    	return Arrays.asList(values);
+    }
+
+    /**
+     * Reads keys with one MGET command, reconnecting if REDIS database is not reachable.
+     */
+    private List<byte[]> mget(byte[][] keys) throws Exception {
+    	RedisMetrics metrics = getRedisMetrics();
+    	while (true) {
+    		long generation = getConnectionGeneration();
+    		long start = metrics.started();
+    		Jedis jedis = null;
+    		try {
+    			jedis = getConnection();
+    			List<byte[]> values = jedis.mget(keys);
+    			metrics.completed(start, keys.length);
+    			return values;
+    		} catch (JedisConnectionException e) {
+    			metrics.failed();
+    			if (jedis != null) {
+    				jedis.close();
+    				jedis = null;
+    			}
+    			reconnect(generation, e);
+    		} catch (Exception e) {
+    			metrics.failed();
+    			throw e;
+    		} finally {
+    			if (jedis != null) {
+    				jedis.close();
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Reads keys from a replica chosen by the replica router, like they are read from the primary.
+     * @return the values, or null if no replica is available or the read failed.
+     */
+    private List<byte[]> readFromReplica(byte[][] keys, PipelineCommand<byte[]> get) throws Exception {
+    	ReplicaRouter.Replica replica = replicas.choose();
+    	if (replica == null) {
+    		return null;
+    	}
+    	RedisMetrics metrics = getRedisMetrics();
+    	long start = metrics.started();
+    	Jedis jedis = null;
+    	try {
+    		jedis = replica.pool.getResource();
+    		List<byte[]> values;
+    		if (keys.length > 1 && LOOKUP_MODE_MGET.equals(lookupMode)) {
+    			values = jedis.mget(keys);
+    		} else {
+    			int[] indexes = new int[keys.length];
+    			for (int i = 0; i < indexes.length; i++) {
+    				indexes[i] = i;
+    			}
+    			List<Response<byte[]>> responses = get.send(jedis, indexes, indexes.length);
+    			values = new ArrayList<byte[]>(responses.size());
+    			for (Response<byte[]> response : responses) {
+    				values.add(response.get());
+    			}
+    		}
+    		metrics.completed(start, keys.length);
+    		replicas.completed(replica, System.nanoTime() - start);
+    		return values;
+    	} catch (JedisConnectionException e) {
+    		metrics.failed();
+    		replicas.failed(replica, e);
+    		return null;
+    	} catch (Exception e) {
+    		metrics.failed();
+    		throw e;
+    	} finally {
+    		if (jedis != null) {
+    			jedis.close();
+    		}
+    	}
+    }
+
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> values) throws Exception {
+        StreamingOutput<OutputTuple> outStream = getOutput(0);
+        for (int i = 0; i < tuples.size(); i++) {
+        	OutputTuple outTuple = outStream.newTuple();
+        	// Copy across all matching attributes.
+        	outTuple.assign(tuples.get(i));
+        	outputCodec.decode(outTuple, (byte[]) values.get(i));
+        	outStream.submit(outTuple);
+        }
+    }
+
     @Override
     public void processPunctuation(StreamingInput<Tuple> stream,
     		Punctuation mark) throws Exception {
@@ -130,7 +447,13 @@ public class RedisGet extends AbstractRedisOperator {
         OperatorContext context = getOperatorContext();
         Logger.getLogger(this.getClass()).trace("Operator " + context.getName() + " shutting down in PE: " + context.getPE().getPEId() + " in Job: " + context.getPE().getJobId() );
         
-        // TODO: If needed, close connections or release resources related to any external system or data store.
+        if (invalidator != null) {
+        	invalidator.stop();
+        }
+        if (replicas != null) {
+        	replicas.close();
+        	replicas = null;
+        }
 
         // Must call super.shutdown()
         super.shutdown();
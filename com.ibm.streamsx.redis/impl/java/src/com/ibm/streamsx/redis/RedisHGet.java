@@ -0,0 +1,198 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.model.InputPortSet;
+import com.ibm.streams.operator.model.InputPortSet.WindowMode;
+import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
+import com.ibm.streams.operator.model.InputPorts;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Operator that reads a REDIS hash into the attributes of the output tuple with the same names.
+ * <p>If field attributes are listed, they are read with one HMGET command, otherwise the whole
+ * hash is read with one HGETALL command. The commands of a batch are pipelined.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisHGet", namespace="com.ibm.streamsx.redis",
+description="The **RedisHGet** operator reads hashes from REDIS database. \\n\\n"
+            + "For each tuple that arrives on its input port the hash 'keyAttr' is read and every field is assigned "
+            + "to the output attribute with the same name. The other output attributes are copied from the input tuple. \\n\\n"
+            + "If **fieldAttrs** is set, only these fields are read with one HMGET command, otherwise the whole hash is read "
+            + "with one HGETALL command. HGETALL assigns fields only to output attributes that are not on the input port, "
+            + "so the key and the other attributes copied from the input tuple are kept; other fields are ignored. \\n\\n"
+            + "Field values are converted to the type of the output attribute: rstring and blob attributes receive the raw bytes, "
+            + "ustring, boolean and numeric attributes are parsed from the string form. "
+            + "A field that is missing from the hash sets string and blob attributes to an empty value. "
+            + "With HMGET other attributes keep the value copied from the input tuple, "
+            + "with HGETALL they keep their default value. \\n\\n"
+            + "If **batchSize** is greater than 1, the hashes of up to **batchSize** tuples are read with one pipelined round-trip. "
+            + "The output tuples are submitted in input order. \\n")
+@InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
+@OutputPorts({@OutputPortSet(description="Port that produces tuples", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Preserving)})
+public class RedisHGet extends AbstractRedisBatchOperator {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// This parameter specifies the output attributes that are read as hash fields.
+	private List<String> fieldAttrs = null;
+
+	// HMGET: the codecs and names of the listed fields.
+	private AttributeCodec[] fieldCodecs = null;
+	private byte[][] fieldNames = null;
+	// HGETALL: the codecs of the output attributes that receive fields, by field name.
+	private Map<ByteBuffer, AttributeCodec> outputCodecs = null;
+
+	//Parameter fieldAttrs
+	@Parameter(name = "fieldAttrs", optional = true,
+			description = "This optional parameter specifies the names of the output attributes that are read as hash fields with HMGET. "
+			+ "By default the whole hash is read with HGETALL."
+			)
+	public void setFieldAttrs(List<String> fieldAttrs){
+		this.fieldAttrs = fieldAttrs;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the field attributes.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (keyCodec == null) {
+			throw new IllegalArgumentException("Parameter keyAttr is required by RedisHGet");
+		}
+		StreamSchema schema = getOutput(0).getStreamSchema();
+		if (fieldAttrs != null) {
+			fieldCodecs = new AttributeCodec[fieldAttrs.size()];
+			fieldNames = new byte[fieldAttrs.size()][];
+			for (int i = 0; i < fieldCodecs.length; i++) {
+				fieldCodecs[i] = AttributeCodec.forField(schema, fieldAttrs.get(i));
+				fieldNames[i] = fieldAttrs.get(i).getBytes(UTF8);
+			}
+		} else {
+			outputCodecs = hashFieldCodecs(getInput(0).getStreamSchema(), schema);
+		}
+	}
+
+	/**
+	 * Returns the codecs of the output attributes that receive the fields of HGETALL, by field name.
+	 * Attributes of the input port are left out, so that the values copied from the input tuple are kept.
+	 */
+	static Map<ByteBuffer, AttributeCodec> hashFieldCodecs(StreamSchema inputSchema, StreamSchema outputSchema) {
+		Map<ByteBuffer, AttributeCodec> codecs = new HashMap<ByteBuffer, AttributeCodec>();
+		for (Attribute attribute : outputSchema) {
+			if (AttributeCodec.isField(attribute.getType().getMetaType()) && inputSchema.getAttribute(attribute.getName()) == null) {
+				codecs.put(ByteBuffer.wrap(attribute.getName().getBytes(UTF8)),
+						AttributeCodec.forField(outputSchema, attribute.getName()));
+			}
+		}
+		return codecs;
+	}
+
+	/**
+	 * Assigns the fields of a hash to the output attributes with the same names.
+	 * The attributes of fields that are missing from the hash keep the default value of the new output tuple.
+	 * @param codecs the codecs returned by {@link #hashFieldCodecs}.
+	 */
+	static void assignFields(OutputTuple outTuple, Map<?, ?> hash, Map<ByteBuffer, AttributeCodec> codecs) {
+		for (Map.Entry<?, ?> field : hash.entrySet()) {
+			AttributeCodec codec = codecs.get(ByteBuffer.wrap((byte[]) field.getKey()));
+			if (codec != null) {
+				codec.decode(outTuple, (byte[]) field.getValue());
+			}
+		}
+	}
+
+    /**
+     * Process an incoming tuple that arrived on the specified port.
+     * @param inputStream Port the tuple is arriving on.
+     * @param tuple Object representing the incoming tuple.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
+            throws Exception {
+    	if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
+    }
+
+    /**
+     * Sends one HMGET or HGETALL command per tuple, pipelined.
+     * @param tuples the tuples of the batch in arrival order.
+     * @return the list of field values or the map of fields of each hash.
+     */
+    @Override
+    protected List<?> executeBatch(List<Tuple> tuples) throws Exception {
+    	final byte[][] keys = new byte[tuples.size()][];
+    	for (int i = 0; i < keys.length; i++) {
+    		keys[i] = keyCodec.encode(tuples.get(i));
+    	}
+    	if (fieldCodecs != null) {
+    		return executePipelined(keys, new PipelineCommand<List<byte[]>>() {
+    			@Override
+    			Response<List<byte[]>> queue(Pipeline pipeline, int index) {
+    				return pipeline.hmget(keys[index], fieldNames);
+    			}
+    		});
+    	}
+    	return executePipelined(keys, new PipelineCommand<Map<byte[], byte[]>>() {
+    		@Override
+    		Response<Map<byte[], byte[]>> queue(Pipeline pipeline, int index) {
+    			return pipeline.hgetAll(keys[index]);
+    		}
+    	});
+    }
+
+    /**
+     * Submits the tuples of a batch with the fields of their hashes in input order.
+     * @param tuples the tuples of the batch in arrival order.
+     * @param results the results returned by {@link #executeBatch(List)}.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> results) throws Exception {
+        StreamingOutput<OutputTuple> outStream = getOutput(0);
+        for (int i = 0; i < tuples.size(); i++) {
+        	OutputTuple outTuple = outStream.newTuple();
+        	// Copy across all matching attributes.
+        	outTuple.assign(tuples.get(i));
+        	if (fieldCodecs != null) {
+        		List<?> values = (List<?>) results.get(i);
+        		for (int f = 0; f < fieldCodecs.length; f++) {
+        			fieldCodecs[f].decode(outTuple, (byte[]) values.get(f));
+        		}
+        	} else {
+        		assignFields(outTuple, (Map<?, ?>) results.get(i), outputCodecs);
+        	}
+        	outStream.submit(outTuple);
+        }
+    }
+}
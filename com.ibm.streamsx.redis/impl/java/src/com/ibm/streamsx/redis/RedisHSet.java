@@ -0,0 +1,243 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.InputPortSet;
+import com.ibm.streams.operator.model.InputPortSet.WindowMode;
+import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
+import com.ibm.streams.operator.model.InputPorts;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Operator that writes the attributes of a tuple as the fields of a REDIS hash.
+ * <p>Each tuple is written with one HSET command. The HSET commands of a batch are pipelined.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisHSet", namespace="com.ibm.streamsx.redis",
+description="The **RedisHSet** operator writes tuples as hashes into REDIS database. \\n\\n"
+            + "The attributes listed in **fieldAttrs** of a tuple that arrives on its input port are written as the fields of the hash 'keyAttr' "
+            + "with one HSET command. The field names are the attribute names. "
+            + "rstring and blob attributes are written as raw bytes, all other attributes in their string form. \\n\\n"
+            + "If **batchSize** is greater than 1, the tuples are collected into micro-batches and each batch is written "
+            + "with one pipelined round-trip. \\n\\n"
+            + "If the output port is present, each tuple is submitted after its write was acknowledged. \\n\\n"
+            + "With **bulkLoad** the writes are streamed for mass insertion without waiting for replies. \\n")
+@InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
+@OutputPorts({@OutputPortSet(description="Port that produces the tuples that were written", cardinality=1, optional=true, windowPunctuationOutputMode=WindowPunctuationOutputMode.Preserving)})
+public class RedisHSet extends AbstractRedisBatchOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisHSet.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] HSET = { 'H', 'S', 'E', 'T' };
+
+	// This parameter specifies the attributes that are written as hash fields.
+	private List<String> fieldAttrs = null;
+
+	private AttributeCodec[] fieldCodecs = null;
+	private byte[][] fieldNames = null;
+
+	// These parameters specify the mass insertion mode.
+	private boolean bulkLoad = false;
+	private int bulkLoadBufferSize = 1024 * 1024;
+
+	private BulkLoader bulkLoader = null;
+	private Metric bulkLoadErrors = null;
+
+	//Parameter fieldAttrs
+	@Parameter(name = "fieldAttrs", optional = true,
+			description = "This optional parameter specifies the names of the input attributes that are written as hash fields. "
+			+ "By default all attributes except 'keyAttr' are written."
+			)
+	public void setFieldAttrs(List<String> fieldAttrs){
+		this.fieldAttrs = fieldAttrs;
+	}
+
+	//Parameter bulkLoad
+	@Parameter(name = "bulkLoad", optional = true,
+			description = "This optional parameter specifies whether the writes are streamed for mass insertion, like `redis-cli --pipe`. "
+			+ "The HSET commands are encoded into a send buffer and written on a dedicated connection without waiting for replies; "
+			+ "a background thread only counts the replies. The tuples are forwarded immediately. "
+			+ "On every punctuation mark and at shutdown the operator waits until all writes were answered and logs the failed writes, "
+			+ "which are also counted by the metric nBulkLoadErrors. "
+			+ "It cannot be combined with **clusterMode**; a connection failure terminates the PE. The default value is false."
+			)
+	public void setBulkLoad(boolean bulkLoad){
+		this.bulkLoad = bulkLoad;
+	}
+
+	//Parameter bulkLoadBufferSize
+	@Parameter(name = "bulkLoadBufferSize", optional = true,
+			description = "This optional parameter specifies the size in bytes of the send buffer if **bulkLoad** is true. The default value is 1048576."
+			)
+	public void setBulkLoadBufferSize(int bulkLoadBufferSize){
+		this.bulkLoadBufferSize = bulkLoadBufferSize;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the field attributes.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (keyCodec == null) {
+			throw new IllegalArgumentException("Parameter keyAttr is required by RedisHSet");
+		}
+		StreamSchema schema = getInput(0).getStreamSchema();
+		List<String> names = fieldAttrs;
+		if (names == null) {
+			names = new ArrayList<String>();
+			for (Attribute attribute : schema) {
+				if (!attribute.getName().equals(keyAttr)) {
+					names.add(attribute.getName());
+				}
+			}
+		}
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("RedisHSet requires at least one field attribute");
+		}
+		fieldCodecs = new AttributeCodec[names.size()];
+		fieldNames = new byte[names.size()][];
+		for (int i = 0; i < fieldCodecs.length; i++) {
+			fieldCodecs[i] = AttributeCodec.forAttribute(schema, names.get(i));
+			fieldNames[i] = names.get(i).getBytes(UTF8);
+		}
+		if (bulkLoad) {
+			bulkLoadErrors = context.getMetrics().createCustomMetric("nBulkLoadErrors", "Number of bulk loaded writes that failed", Metric.Kind.COUNTER);
+			bulkLoader = createBulkLoader(bulkLoadBufferSize);
+		}
+	}
+
+    /**
+     * Process an incoming tuple that arrived on the specified port.
+     * @param inputStream Port the tuple is arriving on.
+     * @param tuple Object representing the incoming tuple.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
+            throws Exception {
+    	if (bulkLoader != null) {
+    		byte[][] args = new byte[2 + fieldCodecs.length * 2][];
+    		args[0] = HSET;
+    		args[1] = keyCodec.encode(tuple);
+    		for (int f = 0; f < fieldCodecs.length; f++) {
+    			args[2 + f * 2] = fieldNames[f];
+    			args[3 + f * 2] = fieldCodecs[f].encode(tuple);
+    		}
+    		bulkLoader.send(args);
+    		submitBatch(Collections.singletonList(tuple), null);
+    	} else if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
+    }
+
+    /**
+     * Sends one HSET command per tuple, pipelined.
+     * @param tuples the tuples of the batch in arrival order.
+     * @return the number of new fields of each hash.
+     */
+    @Override
+    protected List<?> executeBatch(List<Tuple> tuples) throws Exception {
+    	final byte[][] keys = new byte[tuples.size()][];
+    	final List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>(keys.length);
+    	for (int i = 0; i < keys.length; i++) {
+    		Tuple tuple = tuples.get(i);
+    		keys[i] = keyCodec.encode(tuple);
+    		Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>(fieldCodecs.length * 2);
+    		for (int f = 0; f < fieldCodecs.length; f++) {
+    			hash.put(fieldNames[f], fieldCodecs[f].encode(tuple));
+    		}
+    		hashes.add(hash);
+    	}
+    	return executePipelined(keys, new PipelineCommand<Long>() {
+    		@Override
+    		Response<Long> queue(Pipeline pipeline, int index) {
+    			return pipeline.hset(keys[index], hashes.get(index));
+    		}
+    	});
+    }
+
+    /**
+     * Submits the tuples of a batch to the optional output port in input order.
+     * @param tuples the tuples of the batch in arrival order.
+     * @param results the results returned by {@link #executeBatch(List)}.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> results) throws Exception {
+    	if (getOperatorContext().getNumberOfStreamingOutputs() == 0) {
+    		return;
+    	}
+        StreamingOutput<OutputTuple> outStream = getOutput(0);
+        for (Tuple tuple : tuples) {
+        	OutputTuple outTuple = outStream.newTuple();
+        	outTuple.assign(tuple);
+        	outStream.submit(outTuple);
+        }
+    }
+
+    /**
+     * Process an incoming punctuation that arrived on the specified port.
+     * In bulk load mode, waits until all writes were answered.
+     * @param stream Port the punctuation is arriving on.
+     * @param mark The punctuation mark
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public void processPunctuation(StreamingInput<Tuple> stream,
+    		Punctuation mark) throws Exception {
+    	if (bulkLoader != null) {
+    		bulkLoadErrors.incrementValue(bulkLoader.finish());
+    	}
+    	super.processPunctuation(stream, mark);
+    }
+
+    /**
+     * Shutdown this operator. In bulk load mode, waits until all writes were answered.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void shutdown() throws Exception {
+    	if (bulkLoader != null) {
+    		try {
+    			bulkLoadErrors.incrementValue(bulkLoader.finish());
+    		} catch (Exception e) {
+    			LOGGER.error(bulkLoader.getPending() + " bulk loaded writes were not acknowledged before shutdown", e);
+    		}
+    		bulkLoader.close();
+    	}
+    	super.shutdown();
+    }
+}
@@ -0,0 +1,118 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.metrics.OperatorMetrics;
+
+/**
+ * The custom metrics of the REDIS requests of an operator.
+ * <p>A request is one round-trip to REDIS database, for example the pipeline of a micro-batch.
+ * The round-trip latency and the number of commands of the requests are recorded in {@link Histogram}s,
+ * whose percentiles are published every {@value #PUBLISH_INTERVAL} ms for the requests
+ * completed in that interval, together with the number of requests in flight.
+ * Recording does not allocate, so the metrics are always enabled.</p>
+ */
+final class RedisMetrics {
+
+	private static final long PUBLISH_INTERVAL = 1000;
+
+	private final Metric requests;
+	private final Metric commandErrors;
+	private final Metric reconnects;
+	private final Metric inFlight;
+	private final Metric latencyP50;
+	private final Metric latencyP99;
+	private final Metric batchSizeP50;
+	private final Metric batchSizeP99;
+
+	private final AtomicLong inFlightCount = new AtomicLong();
+	private final Histogram latencies = new Histogram();
+	private final Histogram batchSizes = new Histogram();
+	private final ScheduledFuture<?> publisher;
+
+	/**
+	 * Registers the metrics and starts publishing the percentiles.
+	 * @param metrics the metrics of the operator.
+	 * @param scheduler runs the periodic publishing.
+	 */
+	RedisMetrics(OperatorMetrics metrics, ScheduledExecutorService scheduler) {
+		requests = metrics.createCustomMetric("nRequests", "Number of requests sent to REDIS database", Metric.Kind.COUNTER);
+		commandErrors = metrics.createCustomMetric("nCommandErrors", "Number of requests that failed with an error reply or a connection failure", Metric.Kind.COUNTER);
+		reconnects = metrics.createCustomMetric("nReconnects", "Number of times the connection to REDIS database was re-established after a failure", Metric.Kind.COUNTER);
+		inFlight = metrics.createCustomMetric("nInFlightRequests", "Number of requests waiting for their replies", Metric.Kind.GAUGE);
+		latencyP50 = metrics.createCustomMetric("requestLatencyP50", "Median round-trip time of the requests of the last second in microseconds", Metric.Kind.GAUGE);
+		latencyP99 = metrics.createCustomMetric("requestLatencyP99", "99th percentile round-trip time of the requests of the last second in microseconds", Metric.Kind.GAUGE);
+		batchSizeP50 = metrics.createCustomMetric("batchSizeP50", "Median number of commands of the requests of the last second", Metric.Kind.GAUGE);
+		batchSizeP99 = metrics.createCustomMetric("batchSizeP99", "99th percentile number of commands of the requests of the last second", Metric.Kind.GAUGE);
+		publisher = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				publish();
+			}
+		}, PUBLISH_INTERVAL, PUBLISH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records the start of a request.
+	 * @return the start time, to be passed to {@link #completed}.
+	 */
+	long started() {
+		inFlightCount.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a request that received its replies.
+	 * @param start the time returned by {@link #started()}.
+	 * @param commands the number of commands or keys of the request.
+	 */
+	void completed(long start, int commands) {
+		latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		batchSizes.record(commands);
+		requests.increment();
+		inFlightCount.decrementAndGet();
+	}
+
+	/**
+	 * Records a request that failed.
+	 */
+	void failed() {
+		requests.increment();
+		commandErrors.increment();
+		inFlightCount.decrementAndGet();
+	}
+
+	/**
+	 * Records a connection that was re-established after a failure.
+	 */
+	void reconnected() {
+		reconnects.increment();
+	}
+
+	private synchronized void publish() {
+		// Set by one thread only, so that a stale count cannot overwrite a newer one.
+		inFlight.setValue(inFlightCount.get());
+		long count = latencies.drain();
+		if (count > 0) {
+			latencyP50.setValue(latencies.percentile(50, count));
+			latencyP99.setValue(latencies.percentile(99, count));
+		}
+		count = batchSizes.drain();
+		if (count > 0) {
+			batchSizeP50.setValue(batchSizes.percentile(50, count));
+			batchSizeP99.setValue(batchSizes.percentile(99, count));
+		}
+	}
+
+	/**
+	 * Stops publishing the percentiles.
+	 */
+	void close() {
+		publisher.cancel(false);
+	}
+}
@@ -0,0 +1,129 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.model.InputPortSet;
+import com.ibm.streams.operator.model.InputPortSet.WindowMode;
+import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
+import com.ibm.streams.operator.model.InputPorts;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Operator that publishes the value of a tuple as a REDIS Pub/Sub message.
+ * <p>Each tuple is published with one PUBLISH command. The PUBLISH commands of a batch are pipelined.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisPublish", namespace="com.ibm.streamsx.redis",
+description="The **RedisPublish** operator publishes messages to REDIS Pub/Sub channels. \\n\\n"
+            + "For each tuple that arrives on its input port the attribute 'valueAttr' is published with one PUBLISH command "
+            + "to the channel 'keyAttr', or to the channel 'redisKey' if **keyAttr** is not set. "
+            + "Channels and messages can be of type rstring, ustring or blob and are sent as raw bytes. \\n\\n"
+            + "If **batchSize** is greater than 1, the tuples are collected into micro-batches and each batch is published "
+            + "with one pipelined round-trip. \\n\\n"
+            + "Messages are published at most once: if the connection fails, the messages of the failed round-trip are not "
+            + "published again, because the server may already have delivered some of them. They are dropped with a warning "
+            + "and the operator reconnects. \\n")
+@InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
+public class RedisPublish extends AbstractRedisBatchOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisPublish.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The channel of all messages if keyAttr is not set.
+	private byte[] channel = null;
+
+	/**
+	 * Initialize this operator. Resolves the channel and message attributes.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (keyCodec == null) {
+			if (getRedisKey() == null) {
+				throw new IllegalArgumentException("Parameter keyAttr or redisKey is required by RedisPublish");
+			}
+			channel = getRedisKey().getBytes(UTF8);
+		}
+		if (valueCodec == null) {
+			throw new IllegalArgumentException("Parameter valueAttr is required by RedisPublish");
+		}
+	}
+
+    /**
+     * Process an incoming tuple that arrived on the specified port.
+     * @param inputStream Port the tuple is arriving on.
+     * @param tuple Object representing the incoming tuple.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
+            throws Exception {
+    	if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
+    }
+
+    /**
+     * Sends one PUBLISH command per tuple, pipelined.
+     * @param tuples the tuples of the batch in arrival order.
+     * A batch that fails with a connection failure is dropped, not sent again.
+     * @return the number of clients that received each message, or an empty list if the batch was dropped.
+     */
+    @Override
+    protected List<?> executeBatch(List<Tuple> tuples) throws Exception {
+    	final byte[][] channels = new byte[tuples.size()][];
+    	final byte[][] messages = new byte[channels.length][];
+    	for (int i = 0; i < channels.length; i++) {
+    		Tuple tuple = tuples.get(i);
+    		channels[i] = keyCodec != null ? keyCodec.encode(tuple) : channel;
+    		messages[i] = valueCodec.encode(tuple);
+    	}
+    	long generation = getConnectionGeneration();
+    	try {
+    		// In cluster mode the messages are broadcast by the node that receives them, whichever it is.
+    		return executePipelined(channels, new PipelineCommand<Long>() {
+    			@Override
+    			Response<Long> queue(Pipeline pipeline, int index) {
+    				return pipeline.publish(channels[index], messages[index]);
+    			}
+
+    			@Override
+    			boolean isIdempotent() {
+    				// Subscribers would receive the messages that were delivered before the failure twice.
+    				return false;
+    			}
+    		});
+    	} catch (JedisConnectionException e) {
+    		LOGGER.warn("Connection failed while publishing " + channels.length + " messages, which may not all have been delivered", e);
+    		reconnect(generation, e);
+    		return Collections.emptyList();
+    	}
+    }
+
+    /**
+     * The operator has no output port.
+     */
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> results) throws Exception {
+    }
+}
@@ -0,0 +1,376 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Source operator that submits the keys of REDIS database, and optionally their values, found with SCAN.
+ * <p>Each master node is scanned by its own thread. The values of the keys of a cursor page are read
+ * with one pipelined round-trip before the tuples of the page are submitted, so the next page is only
+ * requested when downstream accepted the tuples. After all nodes were scanned, a window marker and
+ * a final marker are submitted.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisScan", namespace="com.ibm.streamsx.redis",
+description="The **RedisScan** operator submits the keys of REDIS database that match **match** and **type**, "
+            + "for example to warm up a cache or to export the keyspace. \\n\\n"
+            + "The keys are iterated with SCAN, which returns about **count** keys per command and does not block the server like KEYS. "
+            + "The key is assigned to the output attribute 'keyAttr', by default the first attribute. "
+            + "If **valueAttr** is set, the values of the keys of each SCAN reply are read with pipelined GET commands and assigned to 'valueAttr'. "
+            + "If **type** is `hash` and **valueAttr** is not set, the hashes are read with pipelined HGETALL commands and every field "
+            + "is assigned to the output attribute with the same name, converted as by **RedisHGet**. "
+            + "Keys that were deleted, or that are not of the expected type when their value is read, are skipped. \\n\\n"
+            + "With **clusterMode** all master nodes are scanned in parallel, one thread per node. "
+            + "The tuples of a SCAN reply are submitted before the next SCAN command is sent, "
+            + "so the scan slows down to the pace of the downstream operators. \\n\\n"
+            + "When all nodes were scanned, the operator submits a window marker and a final marker. "
+            + "SCAN returns every key that exists during the whole scan at least once; "
+            + "a key may be submitted twice if the keyspace is resized during the scan. \\n")
+@OutputPorts({@OutputPortSet(description="Port that produces one tuple per key", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating)})
+public class RedisScan extends AbstractRedisOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisScan.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The cursor that starts and ends a scan.
+	private static final byte[] START_CURSOR = "0".getBytes(UTF8);
+
+	// Time in milliseconds that shutdown waits for each scanner.
+	private static final long SHUTDOWN_GRACE = 5000;
+
+	// These parameters specify the keys that are scanned.
+	private String match = null;
+	private int count = 1000;
+	private String type = null;
+
+	private AttributeCodec keyOutputCodec = null;
+	private AttributeCodec valueOutputCodec = null;
+	// The codecs of all output attributes that can receive a hash field, by field name.
+	private Map<ByteBuffer, AttributeCodec> fieldCodecs = null;
+	private byte[][] scanArguments = null;
+	private Metric skippedKeys = null;
+
+	private volatile boolean running = false;
+	private final List<Thread> scanners = new ArrayList<Thread>();
+	// Number of nodes whose scan is not complete.
+	private AtomicInteger remainingNodes = null;
+
+	//Parameter match
+	@Parameter(name = "match", optional = true,
+			description = "This optional parameter specifies the glob-style pattern of the keys, for example `user:*`. "
+			+ "The default is all keys."
+			)
+	public void setMatch(String match){
+		this.match = match;
+	}
+
+	//Parameter count
+	@Parameter(name = "count", optional = true,
+			description = "This optional parameter specifies the number of keys that the server examines per SCAN command, "
+			+ "which is also the number of values read with one round-trip. Larger values make the scan faster, "
+			+ "smaller values keep each command shorter. The default value is 1000."
+			)
+	public void setCount(int count){
+		this.count = count;
+	}
+
+	//Parameter type
+	@Parameter(name = "type", optional = true,
+			description = "This optional parameter specifies the type of the keys, for example `string` or `hash`. "
+			+ "The type is filtered by the server and requires REDIS 6 or later. The default is all types."
+			)
+	public void setType(String type){
+		this.type = type;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the output attributes and the SCAN arguments.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (count < 1) {
+			throw new IllegalArgumentException("Parameter count must be greater than 0: " + count);
+		}
+		boolean hashes = "hash".equalsIgnoreCase(type);
+		if (hashes && valueAttr != null) {
+			throw new IllegalArgumentException("Parameter valueAttr cannot be used with type hash, the fields are assigned by name");
+		}
+		StreamSchema schema = getOutput(0).getStreamSchema();
+		keyOutputCodec = keyAttr != null ? AttributeCodec.forOutput(schema, keyAttr) : AttributeCodec.forOutput(schema, 0);
+		if (valueAttr != null) {
+			valueOutputCodec = AttributeCodec.forOutput(schema, valueAttr);
+		} else if (hashes) {
+			String keyName = keyAttr != null ? keyAttr : schema.getAttribute(0).getName();
+			fieldCodecs = new HashMap<ByteBuffer, AttributeCodec>();
+			for (Attribute attribute : schema) {
+				if (!attribute.getName().equals(keyName) && AttributeCodec.isField(attribute.getType().getMetaType())) {
+					fieldCodecs.put(ByteBuffer.wrap(attribute.getName().getBytes(UTF8)),
+							AttributeCodec.forField(schema, attribute.getName()));
+				}
+			}
+		}
+
+		// The cursor is the first argument and is replaced for each page.
+		List<byte[]> arguments = new ArrayList<byte[]>();
+		arguments.add(START_CURSOR);
+		if (match != null) {
+			arguments.add(Protocol.Keyword.MATCH.raw);
+			arguments.add(match.getBytes(UTF8));
+		}
+		arguments.add(Protocol.Keyword.COUNT.raw);
+		arguments.add(String.valueOf(count).getBytes(UTF8));
+		if (type != null) {
+			// ScanParams of this Jedis version has no TYPE option.
+			arguments.add("TYPE".getBytes(UTF8));
+			arguments.add(type.getBytes(UTF8));
+		}
+		scanArguments = arguments.toArray(new byte[arguments.size()][]);
+		skippedKeys = context.getMetrics().createCustomMetric("nSkippedKeys",
+				"Number of keys that were deleted or had another type when their value was read", Metric.Kind.COUNTER);
+	}
+
+    /**
+     * Starts one scanner thread per master node. Without master nodes the scan is complete at once.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void allPortsReady() throws Exception {
+    	super.allPortsReady();
+    	running = true;
+    	List<Jedis> connections = getMasterConnections();
+    	remainingNodes = new AtomicInteger(connections.size());
+    	LOGGER.info("Scanning " + connections.size() + " node(s)");
+    	if (connections.isEmpty()) {
+    		// No scanner would submit the final marker.
+    		StreamingOutput<OutputTuple> outStream = getOutput(0);
+    		outStream.punctuate(Punctuation.WINDOW_MARKER);
+    		outStream.punctuate(Punctuation.FINAL_MARKER);
+    		return;
+    	}
+    	for (final Jedis jedis : connections) {
+    		final String node = node(jedis);
+    		Thread scanner = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					scan(jedis, node);
+    				} catch (Exception e) {
+    					// The other scanners stop, as the scan cannot complete.
+    					running = false;
+    					LOGGER.error("Scanning node " + node + " failed", e);
+    					throw new RuntimeException(e);
+    				}
+    			}
+    		});
+    		scanners.add(scanner);
+    	}
+    	for (Thread scanner : scanners) {
+    		scanner.start();
+    	}
+    }
+
+    private static String node(Jedis jedis) {
+    	return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+    }
+
+    /**
+     * Scans one node until its cursor returns to 0 or the operator shuts down.
+     * After a connection failure the scan continues with the last cursor on the same node.
+     * The last scanner that completes submits the final marker.
+     * @param jedis the connection to the node, which the scanner closes.
+     * @param node the address of the node.
+     */
+    private void scan(Jedis jedis, String node) throws Exception {
+    	StreamingOutput<OutputTuple> outStream = getOutput(0);
+    	byte[][] arguments = scanArguments.clone();
+    	boolean done = false;
+    	try {
+    		while (running && !done) {
+    			long generation = getConnectionGeneration();
+    			try {
+    				if (jedis == null) {
+    					jedis = connect(node);
+    				}
+    				while (running && !done) {
+    					List<?> page = scanPage(jedis, arguments);
+    					submit(outStream, jedis, (List<?>) page.get(1));
+    					arguments[0] = (byte[]) page.get(0);
+    					done = Arrays.equals(arguments[0], START_CURSOR);
+    				}
+    			} catch (JedisConnectionException e) {
+    				if (!running) {
+    					break;
+    				}
+    				if (jedis != null) {
+    					jedis.close();
+    					jedis = null;
+    				}
+    				reconnect(generation, e);
+    			}
+    		}
+    	} finally {
+    		if (jedis != null) {
+    			jedis.close();
+    		}
+    	}
+    	if (done) {
+    		LOGGER.info("Scan of node " + node + " is complete");
+    		if (remainingNodes.decrementAndGet() == 0) {
+    			outStream.punctuate(Punctuation.WINDOW_MARKER);
+    			outStream.punctuate(Punctuation.FINAL_MARKER);
+    		}
+    	}
+    }
+
+    /**
+     * Borrows a new connection to a node after a reconnect.
+     * @throws IllegalStateException if the node is no longer a master, as the cursor of a node cannot be used on another.
+     */
+    private Jedis connect(String node) throws Exception {
+    	Jedis found = null;
+    	for (Jedis jedis : getMasterConnections()) {
+    		if (found == null && node(jedis).equals(node)) {
+    			found = jedis;
+    		} else {
+    			jedis.close();
+    		}
+    	}
+    	if (found == null) {
+    		throw new IllegalStateException("Node " + node + " is no longer a master, the scan cannot be resumed");
+    	}
+    	return found;
+    }
+
+    /**
+     * Sends one SCAN command.
+     * @return the reply <code>[cursor, [key, ...]]</code>.
+     */
+    private List<?> scanPage(Jedis jedis, byte[][] arguments) {
+    	RedisMetrics metrics = getRedisMetrics();
+    	long start = metrics.started();
+    	try {
+    		List<?> page = (List<?>) jedis.sendCommand(Protocol.Command.SCAN, arguments);
+    		metrics.completed(start, 1);
+    		return page;
+    	} catch (RuntimeException e) {
+    		metrics.failed();
+    		throw e;
+    	}
+    }
+
+    /**
+     * Reads the values of the keys of a page with one pipelined round-trip, if values are submitted,
+     * and submits one tuple per key.
+     */
+    private void submit(StreamingOutput<OutputTuple> outStream, Jedis jedis, List<?> keys) throws Exception {
+    	if (keys.isEmpty()) {
+    		return;
+    	}
+    	List<Response<byte[]>> values = null;
+    	List<Response<Map<byte[], byte[]>>> hashes = null;
+    	if (valueOutputCodec != null || fieldCodecs != null) {
+    		RedisMetrics metrics = getRedisMetrics();
+    		long start = metrics.started();
+    		try {
+    			Pipeline pipeline = jedis.pipelined();
+    			if (valueOutputCodec != null) {
+    				values = new ArrayList<Response<byte[]>>(keys.size());
+    				for (Object key : keys) {
+    					values.add(pipeline.get((byte[]) key));
+    				}
+    			} else {
+    				hashes = new ArrayList<Response<Map<byte[], byte[]>>>(keys.size());
+    				for (Object key : keys) {
+    					hashes.add(pipeline.hgetAll((byte[]) key));
+    				}
+    			}
+    			pipeline.sync();
+    			metrics.completed(start, keys.size());
+    		} catch (RuntimeException e) {
+    			metrics.failed();
+    			throw e;
+    		}
+    	}
+    	for (int i = 0; i < keys.size(); i++) {
+    		OutputTuple outTuple = outStream.newTuple();
+    		keyOutputCodec.decode(outTuple, (byte[]) keys.get(i));
+    		try {
+    			if (values != null) {
+    				byte[] value = values.get(i).get();
+    				if (value == null) {
+    					skippedKeys.increment();
+    					continue;
+    				}
+    				valueOutputCodec.decode(outTuple, value);
+    			} else if (hashes != null) {
+    				Map<byte[], byte[]> fields = hashes.get(i).get();
+    				if (fields.isEmpty()) {
+    					skippedKeys.increment();
+    					continue;
+    				}
+    				for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+    					AttributeCodec codec = fieldCodecs.get(ByteBuffer.wrap(field.getKey()));
+    					if (codec != null) {
+    						codec.decode(outTuple, field.getValue());
+    					}
+    				}
+    			}
+    		} catch (JedisDataException e) {
+    			// WRONGTYPE: the key is not a string or a hash.
+    			skippedKeys.increment();
+    			continue;
+    		}
+    		outStream.submit(outTuple);
+    	}
+    }
+
+    /**
+     * Stops the scanners after their current page. No final marker is submitted if the scan is not complete.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void shutdown() throws Exception {
+    	running = false;
+    	for (Thread scanner : scanners) {
+    		scanner.join(SHUTDOWN_GRACE);
+    	}
+    	scanners.clear();
+    	super.shutdown();
+    }
+}
@@ -2,6 +2,18 @@
 package com.ibm.streamsx.redis;
 
 
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 
 import com.ibm.streams.operator.AbstractOperator;
@@ -11,6 +23,8 @@ import com.ibm.streams.operator.StreamingData.Punctuation;
 import com.ibm.streams.operator.StreamingInput;
 import com.ibm.streams.operator.StreamingOutput;
 import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.metrics.OperatorMetrics;
 import com.ibm.streams.operator.model.InputPortSet;
 import com.ibm.streams.operator.model.InputPortSet.WindowMode;
 import com.ibm.streams.operator.model.InputPortSet.WindowPunctuationInputMode;
@@ -18,7 +32,18 @@ import com.ibm.streams.operator.model.InputPorts;
 import com.ibm.streams.operator.model.OutputPortSet;
 import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
 import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
 import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+import com.ibm.streams.operator.state.Checkpoint;
+import com.ibm.streams.operator.state.ConsistentRegionContext;
+import com.ibm.streams.operator.state.StateHandler;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 /**
  * Class for an operator that receives a tuple and then optionally submits a tuple. 
@@ -39,13 +64,322 @@ import com.ibm.streams.operator.model.PrimitiveOperator;
  * <p>With the exception of operator initialization, all the other events may occur concurrently with each other, 
  * which lead to these methods being called concurrently by different threads.</p> 
  */
+@SharedLoader
 @PrimitiveOperator(name="RedisSet", namespace="com.ibm.streamsx.redis",
 description="The **RedisSet** operator writes key value pairs into REDIS database. \\n\\n"
-            + "This operator writes tuples 'keyAttr' and 'valueAttr' that arrive on its input port  \\n")
+            + "This operator writes tuples 'keyAttr' and 'valueAttr' that arrive on its input port  \\n\\n"
+            + "Keys and values can be of type rstring, ustring or blob and are written as raw bytes, so binary keys and values are supported. \\n\\n"
+            + "If **batchSize** is greater than 1, the tuples are collected into micro-batches and each batch is written "
+            + "with one pipelined round-trip. The results are submitted in input order when the batch is flushed. \\n\\n"
+            + "The parameter **ackMode** selects the trade-off between durability and throughput. \\n\\n"
+            + "With **clusterMode** the writes of a batch are split into one pipeline per cluster node. \\n\\n"
+            + "With **outageBufferSize** the operator keeps accepting tuples while REDIS database is not reachable and replays the writes after a reconnect. \\n\\n"
+            + "With **coalesceMode** the writes to the same key are coalesced locally: only the last value, or the sum of the counter deltas, "
+            + "is sent when the pending writes are flushed. \\n\\n"
+            + "With **bulkLoad** the writes are streamed for mass insertion without waiting for replies. \\n\\n"
+            + "In a consistent region the writes are buffered between checkpoints and committed atomically when the region drains, "
+            + "together with the sequence id of the checkpoint, which gives exactly-once writes. "
+            + "The writes of a checkpoint interval are kept in memory until the drain and sent in one transaction, "
+            + "so the checkpoint period of the region must be short enough for the tuples that arrive meanwhile. "
+            + "If the transaction is aborted or one of its writes fails, the operator fails and the region is reset. \\n")
 @InputPorts({@InputPortSet(description="Port that ingests tuples", cardinality=1, optional=false, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious), @InputPortSet(description="Optional input ports", optional=true, windowingMode=WindowMode.NonWindowed, windowPunctuationInputMode=WindowPunctuationInputMode.Oblivious)})
 @OutputPorts({@OutputPortSet(description="Port that produces tuples", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating), @OutputPortSet(description="Optional output ports", optional=true, windowPunctuationOutputMode=WindowPunctuationOutputMode.Generating)})
-public class RedisSet extends AbstractRedisOperator {
-	
+public class RedisSet extends AbstractRedisBatchOperator implements StateHandler {
+
+	public static final String ACK_MODE_FIRE_AND_FORGET = "fireAndForget";
+	public static final String ACK_MODE_SERVER_ACK = "serverAck";
+	public static final String ACK_MODE_REPLICATED = "replicated";
+
+	public static final String COALESCE_NONE = "none";
+	public static final String COALESCE_LAST_WRITE_WINS = "lastWriteWins";
+	public static final String COALESCE_INCRBY = "incrBy";
+	public static final String COALESCE_HINCRBY = "hincrBy";
+
+	private static final Logger LOGGER = Logger.getLogger(RedisSet.class);
+
+	private static final byte[] SET = { 'S', 'E', 'T' };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Maximum number of batches queued for the background writer in fire-and-forget mode.
+	private static final int WRITER_QUEUE_SIZE = 16;
+	// Seconds that shutdown waits for queued background writes.
+	private static final long SHUTDOWN_TIMEOUT = 10;
+
+	// This parameter specifies how the writes are acknowledged.
+	private String ackMode = ACK_MODE_SERVER_ACK;
+	// This parameter specifies the number of replicas that must acknowledge the writes in replicated mode.
+	private int replicas = 1;
+	// This parameter specifies how long to wait for the replicas in milliseconds.
+	private long replicationTimeout = 1000;
+
+	private Metric replicationShortfalls = null;
+
+	private ThreadPoolExecutor writer = null;
+
+	// Number of buffered writes that are replayed in one pipeline.
+	private static final int REPLAY_BATCH_SIZE = 1000;
+
+	// These parameters specify the buffer for writes while REDIS database is not reachable.
+	private long outageBufferSize = 0;
+	private int outageSpillSize = 0;
+
+	private OutageBuffer outageBuffer = null;
+	private Metric replayedWrites = null;
+
+	// These parameters specify how the writes to the same key are coalesced.
+	private String coalesceMode = COALESCE_NONE;
+	private long coalesceInterval = 1000;
+	private int coalesceSize = 10000;
+	private String fieldAttr = null;
+
+	private WriteCoalescer coalescer = null;
+	private AttributeCodec fieldCodec = null;
+	private Metric coalescedWrites = null;
+
+	// These parameters specify the mass insertion mode.
+	private boolean bulkLoad = false;
+	private int bulkLoadBufferSize = 1024 * 1024;
+
+	private BulkLoader bulkLoader = null;
+	private Metric bulkLoadErrors = null;
+
+	// This parameter specifies the key of the last committed checkpoint in a consistent region.
+	private String checkpointKey = null;
+
+	private ConsistentRegionContext crContext = null;
+	private byte[] checkpointKeyBytes = null;
+	// Writes of the current checkpoint interval as {key, value}, guarded by itself.
+	// Not bounded: the checkpoint period of the region limits its size.
+	private final List<byte[][]> uncommitted = new ArrayList<byte[][]>();
+	// Sequence id of the last checkpoint whose writes were committed.
+	private long lastCommitted = -1;
+
+	//Parameter ackMode
+	@Parameter(name = "ackMode", optional = true,
+			description = "This optional parameter specifies how the writes are acknowledged by REDIS database. \\n\\n"
+			+ "  **fireAndForget**, the writes are pipelined and their replies are read by a background thread. "
+			+ "The tuples are submitted immediately with an empty result; failed writes are only logged.\\n\\n"
+			+ "  **serverAck**, the default, each tuple is submitted with the reply of its SET command after the server acknowledged it.\\n\\n"
+			+ "  **replicated**, like serverAck, but every batch is followed by a WAIT command until **replicas** replicas acknowledged the writes "
+			+ "or **replicationTimeout** expired. If fewer replicas acknowledged the writes in time, the shortfall is counted "
+			+ "in the metric nReplicationShortfalls and the operator fails, because the writes may be lost on a failover.\\n"
+			)
+	public void setAckMode(String ackMode){
+		this.ackMode = ackMode;
+	}
+
+	//Parameter replicas
+	@Parameter(name = "replicas", optional = true,
+			description = "This optional parameter specifies the number of replicas that must acknowledge the writes if **ackMode** is `replicated`. The default value is 1."
+			)
+	public void setReplicas(int replicas){
+		this.replicas = replicas;
+	}
+
+	//Parameter replicationTimeout
+	@Parameter(name = "replicationTimeout", optional = true,
+			description = "This optional parameter specifies the time in milliseconds to wait for the replicas if **ackMode** is `replicated`. "
+			+ "0 waits forever. The default value is 1000."
+			)
+	public void setReplicationTimeout(long replicationTimeout){
+		this.replicationTimeout = replicationTimeout;
+	}
+
+	//Parameter outageBufferSize
+	@Parameter(name = "outageBufferSize", optional = true,
+			description = "This optional parameter specifies the size in bytes of an in-memory buffer for writes while REDIS database is not reachable. "
+			+ "If a write fails because of a connection failure, the writes are buffered and the tuples are submitted with an empty result, "
+			+ "while the operator reconnects in the background with the backoff of **reconnectInitialDelay** and **reconnectMaxDelay**. "
+			+ "After the reconnect the buffered writes are replayed in arrival order with pipelined SET commands, before new writes are sent again. "
+			+ "When the buffer is full, the input port waits. "
+			+ "If the operator cannot reconnect within **reconnectAttempts** attempts, or a buffered write fails, "
+			+ "the writes stay in the buffer and the operator fails at the next tuple. "
+			+ "The default value is 0, which disables the buffer: the operator reconnects up to **reconnectAttempts** times and then fails."
+			)
+	public void setOutageBufferSize(long outageBufferSize){
+		this.outageBufferSize = outageBufferSize;
+	}
+
+	//Parameter outageSpillSize
+	@Parameter(name = "outageSpillSize", optional = true,
+			description = "This optional parameter specifies the size in bytes of a memory-mapped file in the data directory of the PE "
+			+ "that takes the buffered writes which do not fit into **outageBufferSize**. "
+			+ "The file is deleted when the operator shuts down. The default value is 0, which keeps the buffer in memory only."
+			)
+	public void setOutageSpillSize(int outageSpillSize){
+		this.outageSpillSize = outageSpillSize;
+	}
+
+	//Parameter coalesceMode
+	@Parameter(name = "coalesceMode", optional = true,
+			description = "This optional parameter specifies how the writes to the same key are coalesced before they are sent. \\n\\n"
+			+ "  **none**, the default, every tuple is written.\\n\\n"
+			+ "  **lastWriteWins**, only the last value of each key is written with SET.\\n\\n"
+			+ "  **incrBy**, 'valueAttr' is an integer delta; the deltas of each key are summed and added with INCRBY.\\n\\n"
+			+ "  **hincrBy**, like incrBy, but the deltas are added to the field 'fieldAttr' of the hash with HINCRBY.\\n\\n"
+			+ "The pending writes are flushed with one pipelined round-trip after **coalesceInterval**, when **coalesceSize** keys are pending "
+			+ "and on every punctuation mark. The tuples are submitted immediately with an empty result. "
+			+ "**batchSize** and **maxInFlight** do not apply; the outage buffer applies to lastWriteWins only. "
+			+ "With incrBy and hincrBy a flush is not sent again after a connection failure, because the deltas could be added twice; "
+			+ "the operator fails instead. A failed flush, also one started by **coalesceInterval**, fails the operator at the next tuple or punctuation mark.\\n"
+			)
+	public void setCoalesceMode(String coalesceMode){
+		this.coalesceMode = coalesceMode;
+	}
+
+	//Parameter coalesceInterval
+	@Parameter(name = "coalesceInterval", optional = true,
+			description = "This optional parameter specifies the maximum time in milliseconds a coalesced write is pending. "
+			+ "0 flushes only on **coalesceSize** and punctuation marks. The default value is 1000."
+			)
+	public void setCoalesceInterval(long coalesceInterval){
+		this.coalesceInterval = coalesceInterval;
+	}
+
+	//Parameter coalesceSize
+	@Parameter(name = "coalesceSize", optional = true,
+			description = "This optional parameter specifies the maximum number of distinct keys with pending coalesced writes. The default value is 10000."
+			)
+	public void setCoalesceSize(int coalesceSize){
+		this.coalesceSize = coalesceSize;
+	}
+
+	//Parameter fieldAttr
+	@Parameter(name = "fieldAttr", optional = true,
+			description = "This optional parameter specifies the name of the attribute with the hash field if **coalesceMode** is `hincrBy`."
+			)
+	public void setFieldAttr(String fieldAttr){
+		this.fieldAttr = fieldAttr;
+	}
+
+	//Parameter bulkLoad
+	@Parameter(name = "bulkLoad", optional = true,
+			description = "This optional parameter specifies whether the writes are streamed for mass insertion, like `redis-cli --pipe`. "
+			+ "The SET commands are encoded into a send buffer and written on a dedicated connection without waiting for replies; "
+			+ "a background thread only counts the replies. The tuples are submitted immediately with an empty result. "
+			+ "On every punctuation mark and at shutdown the operator waits until all writes were answered and logs the failed writes, "
+			+ "which are also counted by the metric nBulkLoadErrors. "
+			+ "It cannot be combined with **clusterMode**, **coalesceMode** or **outageBufferSize**; "
+			+ "a connection failure terminates the PE. The default value is false."
+			)
+	public void setBulkLoad(boolean bulkLoad){
+		this.bulkLoad = bulkLoad;
+	}
+
+	//Parameter bulkLoadBufferSize
+	@Parameter(name = "bulkLoadBufferSize", optional = true,
+			description = "This optional parameter specifies the size in bytes of the send buffer if **bulkLoad** is true. The default value is 1048576."
+			)
+	public void setBulkLoadBufferSize(int bulkLoadBufferSize){
+		this.bulkLoadBufferSize = bulkLoadBufferSize;
+	}
+
+	//Parameter checkpointKey
+	@Parameter(name = "checkpointKey", optional = true,
+			description = "This optional parameter specifies the key that stores the sequence id of the last committed checkpoint "
+			+ "if the operator is in a consistent region. Each channel of a parallel region needs its own key. "
+			+ "The default value is `streamsx.redis.checkpoint:<job id>:<operator name>:<channel>`. The key is not deleted when the job is canceled."
+			)
+	public void setCheckpointKey(String checkpointKey){
+		this.checkpointKey = checkpointKey;
+	}
+
+    /**
+     * Initialize this operator. Starts the background writer in fire-and-forget mode.
+     * @param context OperatorContext for this operator.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (keyCodec == null) {
+			throw new IllegalArgumentException("Parameter keyAttr is required by RedisSet");
+		}
+		if (valueCodec == null) {
+			throw new IllegalArgumentException("Parameter valueAttr is required by RedisSet");
+		}
+		if (ACK_MODE_FIRE_AND_FORGET.equals(ackMode)) {
+			// A single thread keeps the batches in order; a full queue blocks the caller.
+			writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(WRITER_QUEUE_SIZE), context.getThreadFactory(),
+					new RejectedExecutionHandler() {
+						@Override
+						public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+							if (executor.isShutdown()) {
+								throw new RejectedExecutionException("Background writer is shut down");
+							}
+							try {
+								executor.getQueue().put(r);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new RejectedExecutionException(e);
+							}
+						}
+					});
+		} else if (!ACK_MODE_SERVER_ACK.equals(ackMode) && !ACK_MODE_REPLICATED.equals(ackMode)) {
+			throw new IllegalArgumentException("Invalid ackMode '" + ackMode + "', expected " + ACK_MODE_FIRE_AND_FORGET + ", " + ACK_MODE_SERVER_ACK + " or " + ACK_MODE_REPLICATED);
+		}
+		if (ACK_MODE_REPLICATED.equals(ackMode)) {
+			replicationShortfalls = context.getMetrics().createCustomMetric("nReplicationShortfalls", "Number of WAIT commands acknowledged by fewer replicas than required within replicationTimeout", Metric.Kind.COUNTER);
+		}
+		if (outageBufferSize > 0) {
+			OperatorMetrics metrics = context.getMetrics();
+			outageBuffer = new OutageBuffer(outageBufferSize,
+					new File(context.getPE().getDataDirectory(), "redis-outage-" + context.getName()), outageSpillSize,
+					metrics.createCustomMetric("outageBufferedBytes", "Number of bytes of writes buffered while REDIS database is not reachable", Metric.Kind.GAUGE),
+					metrics.createCustomMetric("outageBufferedWrites", "Number of writes buffered while REDIS database is not reachable", Metric.Kind.GAUGE));
+			replayedWrites = metrics.createCustomMetric("nReplayedWrites", "Number of buffered writes that were replayed after a reconnect", Metric.Kind.COUNTER);
+		} else if (outageSpillSize > 0) {
+			throw new IllegalArgumentException("Parameter outageSpillSize requires outageBufferSize");
+		}
+		if (!COALESCE_NONE.equals(coalesceMode)) {
+			initializeCoalescer(context);
+		}
+		crContext = context.getOptionalContext(ConsistentRegionContext.class);
+		if (crContext != null) {
+			if (isClusterMode() || coalescer != null || outageBuffer != null || bulkLoad || writer != null) {
+				throw new IllegalArgumentException("RedisSet in a consistent region cannot be combined with clusterMode, coalesceMode, "
+						+ "outageBufferSize, bulkLoad or ackMode " + ACK_MODE_FIRE_AND_FORGET);
+			}
+			if (checkpointKey == null) {
+				checkpointKey = "streamsx.redis.checkpoint:" + context.getPE().getJobId() + ":" + context.getName() + ":" + Math.max(context.getChannel(), 0);
+			}
+			checkpointKeyBytes = checkpointKey.getBytes(UTF8);
+			lastCommitted = readLastCommitted();
+		}
+		if (bulkLoad) {
+			if (coalescer != null || outageBuffer != null) {
+				throw new IllegalArgumentException("Parameter bulkLoad cannot be combined with coalesceMode or outageBufferSize");
+			}
+			bulkLoadErrors = context.getMetrics().createCustomMetric("nBulkLoadErrors", "Number of bulk loaded writes that failed", Metric.Kind.COUNTER);
+			bulkLoader = createBulkLoader(bulkLoadBufferSize);
+		}
+	}
+
+	private void initializeCoalescer(OperatorContext context) {
+		if (!COALESCE_LAST_WRITE_WINS.equals(coalesceMode) && !COALESCE_INCRBY.equals(coalesceMode) && !COALESCE_HINCRBY.equals(coalesceMode)) {
+			throw new IllegalArgumentException("Invalid coalesceMode '" + coalesceMode + "', expected " + COALESCE_NONE + ", "
+					+ COALESCE_LAST_WRITE_WINS + ", " + COALESCE_INCRBY + " or " + COALESCE_HINCRBY);
+		}
+		if (coalesceSize < 1 || coalesceSize > (1 << 28)) {
+			throw new IllegalArgumentException("Parameter coalesceSize must be between 1 and " + (1 << 28) + ": " + coalesceSize);
+		}
+		if (COALESCE_HINCRBY.equals(coalesceMode)) {
+			if (fieldAttr == null) {
+				throw new IllegalArgumentException("Parameter fieldAttr is required by coalesceMode " + COALESCE_HINCRBY);
+			}
+			fieldCodec = AttributeCodec.forAttribute(getInput(0).getStreamSchema(), fieldAttr);
+		}
+		coalescedWrites = context.getMetrics().createCustomMetric("nCoalescedWrites", "Number of writes that were merged into a pending write to the same key", Metric.Kind.COUNTER);
+		coalescer = new WriteCoalescer(coalesceSize, coalesceInterval, context.getScheduledExecutorService(), new WriteCoalescer.Flusher() {
+			@Override
+			public void flush(byte[][] keys, byte[][] fields, byte[][] values, long[] deltas) throws Exception {
+				writeCoalesced(keys, fields, values, deltas);
+			}
+		});
+	}
+
     /**
      * Initialize this operator. Called once before any tuples are processed.
      * @param context OperatorContext for this operator.
@@ -89,37 +423,391 @@ public class RedisSet extends AbstractRedisOperator {
     @Override
     public final void process(StreamingInput<Tuple> inputStream, Tuple tuple)
             throws Exception {
-    	String key = null;
-       	String value = null;
-       	String result = null;
-      	String result2 = null;
+    	if (crContext != null) {
+    		synchronized (uncommitted) {
+    			uncommitted.add(new byte[][] { keyCodec.encode(tuple), valueCodec.encode(tuple) });
+    		}
+    		submitBatch(Collections.singletonList(tuple), null);
+    	} else if (bulkLoader != null) {
+    		bulkLoader.send(SET, keyCodec.encode(tuple), valueCodec.encode(tuple));
+    		submitBatch(Collections.singletonList(tuple), null);
+    	} else if (coalescer != null) {
+    		coalesce(tuple);
+    		submitBatch(Collections.singletonList(tuple), null);
+    	} else if (isBatching()) {
+    		addToBatch(tuple);
+    	} else {
+    		processBatch(Collections.singletonList(tuple));
+    	}
+    }
 
-       	if (keyAttr != null) {
-			key = tuple.getString(keyAttr);
-		}
+    /**
+     * Writes a batch of tuples with one pipelined round-trip.
+     * In fire-and-forget mode the batch is handed to the background writer.
+     * @param tuples the tuples of the batch in arrival order.
+     * @return the reply of each SET command in input order, or null in fire-and-forget mode.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    protected List<?> executeBatch(final List<Tuple> tuples) throws Exception {
+    	if (writer != null) {
+    		writer.execute(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					write(tuples);
+    				} catch (Exception e) {
+    					LOGGER.error("Fire-and-forget write of " + tuples.size() + " tuples failed", e);
+    				}
+    			}
+    		});
+    		return null;
+    	}
+    	return write(tuples);
+    }
 
- 		if (valueAttr != null) {
- 			value = tuple.getString(valueAttr);
-		}
+    /**
+     * Submits the results of a batch to output port 0 in input order.
+     * In fire-and-forget mode the results are empty.
+     * @param tuples the tuples of the batch in arrival order.
+     * @param results the results returned by {@link #executeBatch(List)}.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    protected void submitBatch(List<Tuple> tuples, List<?> results) throws Exception {
+        StreamingOutput<OutputTuple> outStream = getOutput(0);
+        for (int i = 0; i < tuples.size(); i++) {
+        	OutputTuple outTuple = outStream.newTuple();
+        	outTuple.assign(tuples.get(i));
+        	outTuple.setString(0, (results != null) ? (String) results.get(i) : "");
+        	outStream.submit(outTuple);
+        }
+    }
 
- 		result = jedis.set(key, value);	    
- 		result2 = jedis.get(key);	    
-//		System.out.println("Incoming tuple key : " + key + " value : " + value + " result : " + result1 + " result2 : " + result2);
-		 	   
-	    
+    /**
+     * Encodes the keys and values of a batch and writes them.
+     * @return the reply of each SET command, or null if the writes were buffered.
+     */
+    private List<String> write(List<Tuple> tuples) throws Exception {
+    	byte[][] keys = new byte[tuples.size()][];
+    	byte[][] values = new byte[keys.length][];
+    	for (int i = 0; i < keys.length; i++) {
+    		keys[i] = keyCodec.encode(tuples.get(i));
+    		values[i] = valueCodec.encode(tuples.get(i));
+    	}
+    	return write(keys, values);
+    }
 
-    	// Create a new tuple for output port 0
-        StreamingOutput<OutputTuple> outStream = getOutput(0);
-        OutputTuple outTuple = outStream.newTuple();
+    /**
+     * Sends SET commands pipelined and waits for the replies.
+     * While REDIS database is not reachable, the writes are appended to the outage buffer, if any.
+     * @return the reply of each SET command, or null if the writes were buffered.
+     */
+    private List<String> write(byte[][] keys, byte[][] values) throws Exception {
+    	if (outageBuffer == null) {
+    		return executePipelined(keys, setCommand(keys, values));
+    	}
+    	// Buffered writes are replayed before new writes are sent.
+    	if (outageBuffer.appendIfActive(keys, values)) {
+    		return null;
+    	}
+    	try {
+    		return sendPipelined(keys, setCommand(keys, values));
+    	} catch (JedisConnectionException e) {
+    		if (outageBuffer.start(keys, values)) {
+    			LOGGER.warn("REDIS database is not reachable, buffering writes until it is reconnected", e);
+    			scheduleReplay(reconnectInitialDelay, 1);
+    		}
+    		return null;
+    	}
+    }
 
-        // Copy across all matching attributes.
-        outTuple.assign(tuple);
-        outTuple.setString(0, result);
-        
-        // Submit new tuple to output port 0
-        outStream.submit(outTuple);
+    /**
+     * Returns the SET commands of a batch.
+     * In replicated mode a WAIT command follows the pipeline on each connection.
+     */
+    private PipelineCommand<String> setCommand(final byte[][] keys, final byte[][] values) {
+    	return new PipelineCommand<String>() {
+    		@Override
+    		Response<String> queue(Pipeline pipeline, int index) {
+    			return pipeline.set(keys[index], values[index]);
+    		}
+
+    		@Override
+    		void synced(Jedis jedis, int commands) {
+    			if (ACK_MODE_REPLICATED.equals(ackMode)) {
+    				checkReplicated(jedis.waitReplicas(replicas, replicationTimeout), commands + " writes");
+    			}
+    		}
+    	};
+    }
+
+    /**
+     * Fails if fewer than <b>replicas</b> replicas acknowledged the writes in replicated mode.
+     * @param acknowledged the reply of the WAIT command.
+     * @param writes describes the writes for the error message.
+     * @throws IllegalStateException if the writes were not replicated in time.
+     */
+    private void checkReplicated(long acknowledged, String writes) {
+    	if (acknowledged < replicas) {
+    		replicationShortfalls.increment();
+    		throw new IllegalStateException("Only " + acknowledged + " of " + replicas + " replicas acknowledged " + writes + " within " + replicationTimeout + " ms");
+    	}
+    }
+
+    /**
+     * Adds the write of a tuple to the pending coalesced writes.
+     */
+    private void coalesce(Tuple tuple) throws Exception {
+    	byte[] key = keyCodec.encode(tuple);
+    	boolean merged;
+    	if (COALESCE_LAST_WRITE_WINS.equals(coalesceMode)) {
+    		merged = coalescer.put(key, valueCodec.encode(tuple));
+    	} else {
+    		merged = coalescer.add(key, fieldCodec != null ? fieldCodec.encode(tuple) : null, valueCodec.encodeLong(tuple));
+    	}
+    	if (merged) {
+    		coalescedWrites.increment();
+    	}
+    }
+
+    /**
+     * Sends the coalesced writes with one pipelined round-trip, in fire-and-forget mode on the background writer.
+     */
+    private void writeCoalesced(final byte[][] keys, final byte[][] fields, final byte[][] values, final long[] deltas) throws Exception {
+    	if (writer != null) {
+    		writer.execute(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					sendCoalesced(keys, fields, values, deltas);
+    				} catch (Exception e) {
+    					LOGGER.error("Fire-and-forget write of " + keys.length + " coalesced writes failed", e);
+    				}
+    			}
+    		});
+    	} else {
+    		sendCoalesced(keys, fields, values, deltas);
+    	}
+    }
+
+    private void sendCoalesced(final byte[][] keys, final byte[][] fields, final byte[][] values, final long[] deltas) throws Exception {
+    	if (values != null) {
+    		write(keys, values);
+    	} else if (fields != null) {
+    		executePipelined(keys, new PipelineCommand<Long>() {
+    			@Override
+    			Response<Long> queue(Pipeline pipeline, int index) {
+    				return pipeline.hincrBy(keys[index], fields[index], deltas[index]);
+    			}
+
+    			@Override
+    			boolean isIdempotent() {
+    				return false;
+    			}
+    		});
+    	} else {
+    		executePipelined(keys, new PipelineCommand<Long>() {
+    			@Override
+    			Response<Long> queue(Pipeline pipeline, int index) {
+    				return pipeline.incrBy(keys[index], deltas[index]);
+    			}
+
+    			@Override
+    			boolean isIdempotent() {
+    				return false;
+    			}
+    		});
+    	}
+    }
+
+    /**
+     * Commits the writes of the checkpoint interval that ends with the drain.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public void drain() throws Exception {
+    	if (crContext == null) {
+    		return;
+    	}
+    	long sequenceId = crContext.getSequenceId();
+    	List<byte[][]> writes;
+    	synchronized (uncommitted) {
+    		writes = new ArrayList<byte[][]>(uncommitted);
+    		uncommitted.clear();
+    	}
+    	if (sequenceId <= lastCommitted) {
+    		// Replayed after a reset, but committed before the reset.
+    		LOGGER.info("Skipping " + writes.size() + " writes of checkpoint " + sequenceId + ", which were already committed");
+    		return;
+    	}
+    	while (true) {
+    		long generation = getConnectionGeneration();
+    		try {
+    			commit(sequenceId, writes);
+    			lastCommitted = sequenceId;
+    			return;
+    		} catch (JedisConnectionException e) {
+    			reconnect(generation, e);
+    			// The transaction may have been executed before the connection failed.
+    			lastCommitted = readLastCommitted();
+    			if (sequenceId <= lastCommitted) {
+    				return;
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Writes the SET commands and the sequence id in one MULTI/EXEC transaction with one round-trip.
+     * @throws IllegalStateException if the transaction was aborted or one of its commands failed.
+     */
+    private void commit(long sequenceId, List<byte[][]> writes) throws Exception {
+    	RedisMetrics metrics = getRedisMetrics();
+    	long start = metrics.started();
+    	Jedis jedis = getConnection();
+    	try {
+    		Transaction transaction = jedis.multi();
+    		for (byte[][] write : writes) {
+    			transaction.set(write[0], write[1]);
+    		}
+    		transaction.set(checkpointKeyBytes, String.valueOf(sequenceId).getBytes(UTF8));
+    		List<Object> replies = transaction.exec();
+    		if (replies == null) {
+    			throw new IllegalStateException("The transaction of checkpoint " + sequenceId + " was aborted");
+    		}
+    		for (Object reply : replies) {
+    			if (reply instanceof Exception) {
+    				throw new IllegalStateException("The transaction of checkpoint " + sequenceId + " failed", (Exception) reply);
+    			}
+    		}
+    		if (ACK_MODE_REPLICATED.equals(ackMode)) {
+    			checkReplicated(jedis.waitReplicas(replicas, replicationTimeout), "checkpoint " + sequenceId);
+    		}
+    	} catch (RuntimeException e) {
+    		metrics.failed();
+    		throw e;
+    	} finally {
+    		jedis.close();
+    	}
+    	metrics.completed(start, writes.size() + 1);
+    }
+
+    /**
+     * Reads the sequence id of the last committed checkpoint, -1 if none was committed.
+     */
+    private long readLastCommitted() throws Exception {
+    	Jedis jedis = getConnection();
+    	try {
+    		byte[] value = jedis.get(checkpointKeyBytes);
+    		return (value != null) ? Long.parseLong(new String(value, UTF8)) : -1;
+    	} finally {
+    		jedis.close();
+    	}
+    }
+
+    /**
+     * Nothing to save: the writes of the interval were committed by {@link #drain()}.
+     */
+    @Override
+    public void checkpoint(Checkpoint checkpoint) throws Exception {
+    }
+
+    /**
+     * Discards the uncommitted writes, which are replayed by the region.
+     */
+    @Override
+    public void reset(Checkpoint checkpoint) throws Exception {
+    	resetToInitialState();
+    }
+
+    /**
+     * Discards the uncommitted writes, which are replayed by the region.
+     */
+    @Override
+    public void resetToInitialState() throws Exception {
+    	if (crContext == null) {
+    		return;
+    	}
+    	synchronized (uncommitted) {
+    		uncommitted.clear();
+    	}
+    	lastCommitted = readLastCommitted();
+    }
+
+    @Override
+    public void retireCheckpoint(long id) throws Exception {
     }
-    
+
+    /**
+     * Nothing to close, the connections are closed by {@link #shutdown()}.
+     */
+    @Override
+    public void close() {
+    }
+
+    private void scheduleReplay(final long delay, final int attempt) {
+    	getOperatorContext().getScheduledExecutorService().schedule(new Runnable() {
+    		@Override
+    		public void run() {
+    			replay(delay, attempt);
+    		}
+    	}, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reconnects and replays the outage buffer. Scheduled again with a doubled delay while REDIS database is not reachable,
+     * up to <b>reconnectAttempts</b> times. If the operator cannot reconnect, or a buffered write fails,
+     * the outage buffer keeps the writes and fails the next write of the input port.
+     * @param delay the delay before this attempt.
+     * @param attempt the number of this reconnect attempt, starting at 1.
+     */
+    private void replay(long delay, int attempt) {
+    	try {
+    		createRedisConnection();
+    	} catch (Exception e) {
+    		if (reconnectAttempts >= 0 && attempt >= reconnectAttempts) {
+    			LOGGER.error("Reconnect failed after " + attempt + " attempts, the buffered writes are not replayed", e);
+    			outageBuffer.fail(e);
+    			return;
+    		}
+    		long nextDelay = Math.min(delay * 2, reconnectMaxDelay);
+    		LOGGER.debug("Reconnect failed, next attempt in " + nextDelay + " ms", e);
+    		scheduleReplay(nextDelay, attempt + 1);
+    		return;
+    	}
+    	getRedisMetrics().reconnected();
+    	LOGGER.info("Reconnected to REDIS database, replaying the buffered writes");
+
+    	byte[][] keys = new byte[REPLAY_BATCH_SIZE][];
+    	byte[][] values = new byte[REPLAY_BATCH_SIZE][];
+    	while (true) {
+    		int count = outageBuffer.peek(keys, values);
+    		if (count == 0) {
+    			if (outageBuffer.finish()) {
+    				LOGGER.info("All buffered writes were replayed");
+    				return;
+    			}
+    			continue;
+    		}
+    		byte[][] batchKeys = (count < keys.length) ? Arrays.copyOf(keys, count) : keys;
+    		byte[][] batchValues = (count < values.length) ? Arrays.copyOf(values, count) : values;
+    		try {
+    			sendPipelined(batchKeys, setCommand(batchKeys, batchValues));
+    		} catch (JedisConnectionException e) {
+    			LOGGER.warn("REDIS database is not reachable again, replay is suspended", e);
+    			scheduleReplay(reconnectInitialDelay, 1);
+    			return;
+    		} catch (Exception e) {
+    			LOGGER.error("Replay of " + count + " buffered writes failed, the writes are kept and the operator fails", e);
+    			outageBuffer.fail(e);
+    			return;
+    		}
+    		outageBuffer.remove(count);
+    		replayedWrites.incrementValue(count);
+    	}
+    }
+
     /**
      * Process an incoming punctuation that arrived on the specified port.
      * @param stream Port the punctuation is arriving on.
@@ -129,6 +817,21 @@ public class RedisSet extends AbstractRedisOperator {
     @Override
     public void processPunctuation(StreamingInput<Tuple> stream,
     		Punctuation mark) throws Exception {
+    	// Forward the punctuation only after the background writes are done.
+    	if (bulkLoader != null) {
+    		bulkLoadErrors.incrementValue(bulkLoader.finish());
+    	}
+    	if (coalescer != null) {
+    		coalescer.flush();
+    	}
+    	flushBatch();
+    	if (writer != null) {
+    		writer.submit(new Runnable() {
+    			@Override
+    			public void run() {
+    			}
+    		}).get();
+    	}
     	// For window markers, punctuate all output ports 
     	super.processPunctuation(stream, mark);
     }
@@ -141,7 +844,37 @@ public class RedisSet extends AbstractRedisOperator {
         OperatorContext context = getOperatorContext();
         Logger.getLogger(this.getClass()).trace("Operator " + context.getName() + " shutting down in PE: " + context.getPE().getPEId() + " in Job: " + context.getPE().getJobId() );
         
-        // TODO: If needed, close connections or release resources related to any external system or data store.
+        if (bulkLoader != null) {
+        	try {
+        		bulkLoadErrors.incrementValue(bulkLoader.finish());
+        	} catch (Exception e) {
+        		LOGGER.error(bulkLoader.getPending() + " bulk loaded writes were not acknowledged before shutdown", e);
+        	}
+        	bulkLoader.close();
+        }
+        if (coalescer != null) {
+        	try {
+        		coalescer.flush();
+        	} catch (Exception e) {
+        		LOGGER.error("Flushing the coalesced writes at shutdown failed", e);
+        	}
+        	int discarded = coalescer.close();
+        	if (discarded > 0) {
+        		LOGGER.warn(discarded + " coalesced writes were not flushed before shutdown and are discarded");
+        	}
+        }
+        if (writer != null) {
+        	writer.shutdown();
+        	if (!writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+        		LOGGER.warn("Background writes did not complete within " + SHUTDOWN_TIMEOUT + " seconds");
+        	}
+        }
+        if (outageBuffer != null) {
+        	int discarded = outageBuffer.close();
+        	if (discarded > 0) {
+        		LOGGER.warn(discarded + " buffered writes were not replayed before shutdown and are discarded");
+        	}
+        }
 
         // Must call super.shutdown()
         super.shutdown();
@@ -0,0 +1,327 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Source operator that reads the entries of a REDIS stream as a member of a consumer group.
+ * <p>Entries are read with XREADGROUP in blocks of up to <b>count</b> entries. The entries of a
+ * block are submitted and then acknowledged with one XACK command. After a start or a reconnect,
+ * the entries that were delivered to the consumer but not acknowledged are read again first.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisStreamSource", namespace="com.ibm.streamsx.redis",
+description="The **RedisStreamSource** operator reads the entries of the REDIS stream 'redisKey' as a member of a consumer group. \\n\\n"
+            + "Entries are read with XREADGROUP, up to **count** entries per command. If no entry is available, "
+            + "the command waits up to **blockTime** milliseconds. Each entry is submitted as one tuple: every field is assigned "
+            + "to the output attribute with the same name and the entry id to **idAttr**. "
+            + "Field values are converted as by **RedisHGet**, fields without a matching output attribute are ignored. \\n\\n"
+            + "The entries of a read are acknowledged with one XACK command after their tuples were submitted. "
+            + "Entries that were delivered but not acknowledged, for example because the PE restarted or the connection failed, "
+            + "are submitted again, so delivery is at least once. \\n\\n"
+            + "The operator can run in a parallel region: the channels share the consumer group and REDIS database "
+            + "distributes the entries among them. Each channel uses its own consumer name. \\n")
+@OutputPorts({@OutputPortSet(description="Port that produces one tuple per stream entry", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Free)})
+public class RedisStreamSource extends AbstractRedisOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisStreamSource.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Reads the entries delivered to this consumer that were not acknowledged.
+	private static final byte[] PENDING_ID = "0".getBytes(UTF8);
+	// Reads entries that were never delivered to a consumer of the group.
+	private static final byte[] NEW_ID = ">".getBytes(UTF8);
+
+	// Time in milliseconds that shutdown waits for the reader in addition to blockTime.
+	private static final long SHUTDOWN_GRACE = 5000;
+
+	// These parameters specify the consumer group and the consumer.
+	private String consumerGroup = null;
+	private String consumerName = null;
+	private boolean createGroup = true;
+	private String groupStartId = "$";
+
+	// These parameters specify how the entries are read.
+	private int count = 100;
+	private long blockTime = 1000;
+
+	// This parameter specifies the output attribute of the entry id.
+	private String idAttr = null;
+
+	private byte[] stream = null;
+	private byte[] group = null;
+	private byte[] consumer = null;
+	private AttributeCodec idCodec = null;
+	// The codecs of all output attributes that can receive a field, by field name.
+	private Map<ByteBuffer, AttributeCodec> outputCodecs = null;
+
+	private volatile boolean running = false;
+	private Thread reader = null;
+
+	//Parameter consumerGroup
+	@Parameter(name = "consumerGroup", optional = false,
+			description = "This parameter specifies the name of the consumer group."
+			)
+	public void setConsumerGroup(String consumerGroup){
+		this.consumerGroup = consumerGroup;
+	}
+
+	//Parameter consumerName
+	@Parameter(name = "consumerName", optional = true,
+			description = "This optional parameter specifies the name of the consumer in the consumer group. "
+			+ "The name must be unique in the group and stable across restarts, so that unacknowledged entries are read again. "
+			+ "The default value is the name of the operator followed by '-' and the parallel channel."
+			)
+	public void setConsumerName(String consumerName){
+		this.consumerName = consumerName;
+	}
+
+	//Parameter createGroup
+	@Parameter(name = "createGroup", optional = true,
+			description = "This optional parameter specifies whether the consumer group and the stream are created if they do not exist. "
+			+ "The default value is true."
+			)
+	public void setCreateGroup(boolean createGroup){
+		this.createGroup = createGroup;
+	}
+
+	//Parameter groupStartId
+	@Parameter(name = "groupStartId", optional = true,
+			description = "This optional parameter specifies the id after which a consumer group that is created reads the stream. "
+			+ "The default value '$' reads only entries that are added after the group was created, '0' reads the whole stream."
+			)
+	public void setGroupStartId(String groupStartId){
+		this.groupStartId = groupStartId;
+	}
+
+	//Parameter count
+	@Parameter(name = "count", optional = true,
+			description = "This optional parameter specifies the maximum number of entries read and acknowledged with one command. "
+			+ "The default value is 100."
+			)
+	public void setCount(int count){
+		this.count = count;
+	}
+
+	//Parameter blockTime
+	@Parameter(name = "blockTime", optional = true,
+			description = "This optional parameter specifies how long in milliseconds a read waits for new entries. "
+			+ "It also bounds the time the operator needs to shut down. The default value is 1000."
+			)
+	public void setBlockTime(long blockTime){
+		this.blockTime = blockTime;
+	}
+
+	//Parameter idAttr
+	@Parameter(name = "idAttr", optional = true,
+			description = "This optional parameter specifies the name of the rstring, ustring or blob output attribute that receives the entry id."
+			)
+	public void setIdAttr(String idAttr){
+		this.idAttr = idAttr;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the output attributes and creates the consumer group.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if (getRedisKey() == null) {
+			throw new IllegalArgumentException("Parameter redisKey is required by RedisStreamSource");
+		}
+		if (count < 1) {
+			throw new IllegalArgumentException("Parameter count must be greater than 0: " + count);
+		}
+		if (blockTime < 1) {
+			throw new IllegalArgumentException("Parameter blockTime must be greater than 0: " + blockTime);
+		}
+		if (consumerName == null) {
+			consumerName = context.getName() + "-" + Math.max(context.getChannel(), 0);
+		}
+		stream = getRedisKey().getBytes(UTF8);
+		group = consumerGroup.getBytes(UTF8);
+		consumer = consumerName.getBytes(UTF8);
+
+		StreamSchema schema = getOutput(0).getStreamSchema();
+		if (idAttr != null) {
+			idCodec = AttributeCodec.forOutput(schema, idAttr);
+		}
+		outputCodecs = new HashMap<ByteBuffer, AttributeCodec>();
+		for (Attribute attribute : schema) {
+			if (!attribute.getName().equals(idAttr) && AttributeCodec.isField(attribute.getType().getMetaType())) {
+				outputCodecs.put(ByteBuffer.wrap(attribute.getName().getBytes(UTF8)),
+						AttributeCodec.forField(schema, attribute.getName()));
+			}
+		}
+
+		if (createGroup) {
+			Jedis jedis = getConnection(stream);
+			try {
+				jedis.xgroupCreate(stream, group, groupStartId.getBytes(UTF8), true);
+				LOGGER.info("Created consumer group " + consumerGroup + " of stream " + getRedisKey());
+			} catch (JedisDataException e) {
+				// All channels of a parallel region try to create the group.
+				if (e.getMessage() == null || !e.getMessage().startsWith("BUSYGROUP")) {
+					throw e;
+				}
+			} finally {
+				jedis.close();
+			}
+		}
+	}
+
+    /**
+     * Starts the thread that reads the stream.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void allPortsReady() throws Exception {
+    	super.allPortsReady();
+    	running = true;
+    	reader = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				read();
+    			} catch (Exception e) {
+    				LOGGER.error("Reading stream " + getRedisKey() + " failed", e);
+    				throw new RuntimeException(e);
+    			}
+    		}
+    	});
+    	reader.start();
+    }
+
+    /**
+     * Reads, submits and acknowledges entries until the operator shuts down.
+     * The connection is held for the lifetime of the reader and replaced after a failure.
+     */
+    private void read() throws Exception {
+    	StreamingOutput<OutputTuple> outStream = getOutput(0);
+    	Map<byte[], byte[]> streams = new HashMap<byte[], byte[]>(2);
+    	// Unacknowledged entries are read first.
+    	boolean pending = true;
+    	while (running) {
+    		long generation = getConnectionGeneration();
+    		Jedis jedis = null;
+    		try {
+    			jedis = getConnection(stream);
+    			while (running) {
+    				streams.put(stream, pending ? PENDING_ID : NEW_ID);
+    				List<?> reply = jedis.xreadGroup(group, consumer, count, blockTime, false, streams);
+    				List<?> entries = entries(reply);
+    				if (entries.isEmpty()) {
+    					pending = false;
+    					continue;
+    				}
+    				byte[][] ids = new byte[entries.size()][];
+    				for (int i = 0; i < ids.length; i++) {
+    					List<?> entry = (List<?>) entries.get(i);
+    					ids[i] = (byte[]) entry.get(0);
+    					List<?> fields = (List<?>) entry.get(1);
+    					// The fields of a pending entry are nil if it was deleted from the stream.
+    					if (fields != null) {
+    						outStream.submit(toTuple(outStream.newTuple(), ids[i], fields));
+    					}
+    				}
+    				acknowledge(jedis, ids);
+    			}
+    		} catch (JedisConnectionException e) {
+    			if (!running) {
+    				break;
+    			}
+    			if (jedis != null) {
+    				jedis.close();
+    				jedis = null;
+    			}
+    			reconnect(generation, e);
+    			// Entries that were submitted but not acknowledged are submitted again.
+    			pending = true;
+    		} finally {
+    			if (jedis != null) {
+    				jedis.close();
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Returns the entries of the only stream in an XREADGROUP reply,
+     * that is <code>[[stream, [[id, [field, value, ...]], ...]]]</code>, or nil on timeout.
+     */
+    private static List<?> entries(List<?> reply) {
+    	if (reply == null || reply.isEmpty()) {
+    		return Collections.emptyList();
+    	}
+    	List<?> entries = (List<?>) ((List<?>) reply.get(0)).get(1);
+    	return entries != null ? entries : Collections.emptyList();
+    }
+
+    private OutputTuple toTuple(OutputTuple outTuple, byte[] id, List<?> fields) {
+    	if (idCodec != null) {
+    		idCodec.decode(outTuple, id);
+    	}
+    	for (int f = 0; f + 1 < fields.size(); f += 2) {
+    		AttributeCodec codec = outputCodecs.get(ByteBuffer.wrap((byte[]) fields.get(f)));
+    		if (codec != null) {
+    			codec.decode(outTuple, (byte[]) fields.get(f + 1));
+    		}
+    	}
+    	return outTuple;
+    }
+
+    private void acknowledge(Jedis jedis, byte[][] ids) {
+    	RedisMetrics metrics = getRedisMetrics();
+    	long start = metrics.started();
+    	try {
+    		jedis.xack(stream, group, ids);
+    		metrics.completed(start, ids.length);
+    	} catch (RuntimeException e) {
+    		metrics.failed();
+    		throw e;
+    	}
+    }
+
+    /**
+     * Stops the reader. The reader finishes its current read, which waits at most <b>blockTime</b>.
+     * Entries that were submitted but not acknowledged are submitted again after a restart.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void shutdown() throws Exception {
+    	running = false;
+    	if (reader != null) {
+    		reader.join(blockTime + SHUTDOWN_GRACE);
+    		reader = null;
+    	}
+    	super.shutdown();
+    }
+}
@@ -0,0 +1,303 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.OperatorContext;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPortSet.WindowPunctuationOutputMode;
+import com.ibm.streams.operator.model.OutputPorts;
+import com.ibm.streams.operator.model.Parameter;
+import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.model.SharedLoader;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * Source operator that submits the messages of REDIS Pub/Sub channels.
+ * <p>A subscriber thread reads the messages from a dedicated connection and hands them to the
+ * submitter thread through a bounded queue, so that a slow downstream does not stall the reads
+ * for short bursts. When the queue is full, the subscriber waits and REDIS database buffers the
+ * messages up to its client output buffer limit.</p>
+ */
+@SharedLoader
+@PrimitiveOperator(name="RedisSubscribe", namespace="com.ibm.streamsx.redis",
+description="The **RedisSubscribe** operator submits the messages published to REDIS Pub/Sub channels. \\n\\n"
+            + "The operator subscribes to the **channels** with SUBSCRIBE and to the channel patterns **patterns** with PSUBSCRIBE "
+            + "on a dedicated connection. Each message is submitted as one tuple with the message in **messageAttr**, "
+            + "the channel in **channelAttr** and the matching pattern in **patternAttr**. \\n\\n"
+            + "The messages are handed from the connection thread to the submitting thread through a queue of **queueSize** messages. "
+            + "When the queue is full, the operator stops reading and REDIS database buffers the messages; "
+            + "if its client output buffer limit for Pub/Sub is exceeded, it closes the connection and the operator resubscribes. \\n\\n"
+            + "Pub/Sub delivers at most once: messages published while the connection is down are lost. \\n")
+@OutputPorts({@OutputPortSet(description="Port that produces one tuple per message", cardinality=1, optional=false, windowPunctuationOutputMode=WindowPunctuationOutputMode.Free)})
+public class RedisSubscribe extends AbstractRedisOperator {
+
+	private static final Logger LOGGER = Logger.getLogger(RedisSubscribe.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Maximum number of messages the submitter takes from the queue at once.
+	private static final int DRAIN_SIZE = 256;
+
+	// These parameters specify the channels and patterns.
+	private List<String> channels = null;
+	private List<String> patterns = null;
+
+	// These parameters specify the output attributes.
+	private String messageAttr = null;
+	private String channelAttr = null;
+	private String patternAttr = null;
+
+	// This parameter specifies the capacity of the hand-off queue.
+	private int queueSize = 10000;
+
+	private AttributeCodec messageCodec = null;
+	private AttributeCodec channelCodec = null;
+	private AttributeCodec patternCodec = null;
+
+	// Messages as {pattern, channel, message}; pattern is null for SUBSCRIBE.
+	private BlockingQueue<byte[][]> queue = null;
+	private Metric queuedMessages = null;
+
+	private volatile boolean running = false;
+	private volatile Jedis listener = null;
+	private Thread subscriber = null;
+	private Thread submitter = null;
+
+	//Parameter channels
+	@Parameter(name = "channels", optional = true,
+			description = "This optional parameter specifies the channels to subscribe to."
+			)
+	public void setChannels(List<String> channels){
+		this.channels = channels;
+	}
+
+	//Parameter patterns
+	@Parameter(name = "patterns", optional = true,
+			description = "This optional parameter specifies the channel patterns to subscribe to, for example `events.*`."
+			)
+	public void setPatterns(List<String> patterns){
+		this.patterns = patterns;
+	}
+
+	//Parameter messageAttr
+	@Parameter(name = "messageAttr", optional = true,
+			description = "This optional parameter specifies the name of the rstring, ustring or blob output attribute that receives the message. "
+			+ "The default is the first attribute of the output port."
+			)
+	public void setMessageAttr(String messageAttr){
+		this.messageAttr = messageAttr;
+	}
+
+	//Parameter channelAttr
+	@Parameter(name = "channelAttr", optional = true,
+			description = "This optional parameter specifies the name of the rstring, ustring or blob output attribute that receives the channel."
+			)
+	public void setChannelAttr(String channelAttr){
+		this.channelAttr = channelAttr;
+	}
+
+	//Parameter patternAttr
+	@Parameter(name = "patternAttr", optional = true,
+			description = "This optional parameter specifies the name of the rstring, ustring or blob output attribute that receives "
+			+ "the pattern that matched the channel. It is empty for messages of **channels**."
+			)
+	public void setPatternAttr(String patternAttr){
+		this.patternAttr = patternAttr;
+	}
+
+	//Parameter queueSize
+	@Parameter(name = "queueSize", optional = true,
+			description = "This optional parameter specifies the number of messages that can wait for submission. The default value is 10000."
+			)
+	public void setQueueSize(int queueSize){
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Initialize this operator. Resolves the output attributes.
+	 * @param context OperatorContext for this operator.
+	 * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+	 */
+	@Override
+	public synchronized void initialize(OperatorContext context)
+			throws Exception {
+		super.initialize(context);
+		if ((channels == null || channels.isEmpty()) && (patterns == null || patterns.isEmpty())) {
+			throw new IllegalArgumentException("Parameter channels or patterns is required by RedisSubscribe");
+		}
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("Parameter queueSize must be greater than 0: " + queueSize);
+		}
+		StreamSchema schema = getOutput(0).getStreamSchema();
+		messageCodec = messageAttr != null ? AttributeCodec.forOutput(schema, messageAttr) : AttributeCodec.forOutput(schema, 0);
+		if (channelAttr != null) {
+			channelCodec = AttributeCodec.forOutput(schema, channelAttr);
+		}
+		if (patternAttr != null) {
+			patternCodec = AttributeCodec.forOutput(schema, patternAttr);
+		}
+		queue = new ArrayBlockingQueue<byte[][]>(queueSize);
+		queuedMessages = context.getMetrics().createCustomMetric("queuedMessages", "Number of messages waiting for submission", Metric.Kind.GAUGE);
+	}
+
+    /**
+     * Starts the subscriber and the submitter threads.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void allPortsReady() throws Exception {
+    	super.allPortsReady();
+    	running = true;
+    	submitter = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				submit();
+    			} catch (InterruptedException e) {
+    				// Shut down.
+    			} catch (Exception e) {
+    				LOGGER.error("Submitting messages failed", e);
+    				throw new RuntimeException(e);
+    			}
+    		}
+    	});
+    	subscriber = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+    		@Override
+    		public void run() {
+    			subscribe();
+    		}
+    	});
+    	submitter.start();
+    	subscriber.start();
+    }
+
+    /**
+     * Subscribes and reads messages until the operator shuts down.
+     * If the connection fails, resubscribes after a delay that starts at <b>reconnectInitialDelay</b>
+     * and doubles up to <b>reconnectMaxDelay</b>.
+     */
+    private void subscribe() {
+    	long delay = reconnectInitialDelay;
+    	while (running) {
+    		try {
+    			listener = createDedicatedConnection();
+    			if (!running) {
+    				// Shut down while connecting.
+    				break;
+    			}
+    			Client client = listener.getClient();
+    			if (channels != null && !channels.isEmpty()) {
+    				client.subscribe(encode(channels));
+    			}
+    			if (patterns != null && !patterns.isEmpty()) {
+    				client.psubscribe(encode(patterns));
+    			}
+    			client.setTimeoutInfinite();
+    			delay = reconnectInitialDelay;
+    			while (running) {
+    				List<?> message = (List<?>) client.getOne();
+    				String kind = SafeEncoder.encode((byte[]) message.get(0));
+    				if ("message".equals(kind)) {
+    					// message, channel, payload
+    					queue.put(new byte[][] { null, (byte[]) message.get(1), (byte[]) message.get(2) });
+    				} else if ("pmessage".equals(kind)) {
+    					// pmessage, pattern, channel, payload
+    					queue.put(new byte[][] { (byte[]) message.get(1), (byte[]) message.get(2), (byte[]) message.get(3) });
+    				}
+    				// Confirmations of subscribe and psubscribe are ignored.
+    			}
+    		} catch (InterruptedException e) {
+    			break;
+    		} catch (Exception e) {
+    			if (!running) {
+    				break;
+    			}
+    			LOGGER.warn("Subscription connection failed, resubscribing in " + delay + " ms", e);
+    			getRedisMetrics().reconnected();
+    			try {
+    				Thread.sleep(delay);
+    			} catch (InterruptedException ie) {
+    				break;
+    			}
+    			delay = Math.min(delay * 2, reconnectMaxDelay);
+    		} finally {
+    			Jedis jedis = listener;
+    			listener = null;
+    			if (jedis != null) {
+    				jedis.close();
+    			}
+    		}
+    	}
+    }
+
+    private static byte[][] encode(List<String> names) {
+    	byte[][] encoded = new byte[names.size()][];
+    	for (int i = 0; i < encoded.length; i++) {
+    		encoded[i] = names.get(i).getBytes(UTF8);
+    	}
+    	return encoded;
+    }
+
+    /**
+     * Takes messages from the queue and submits them until the operator shuts down.
+     */
+    private void submit() throws Exception {
+    	StreamingOutput<OutputTuple> outStream = getOutput(0);
+    	List<byte[][]> messages = new ArrayList<byte[][]>(DRAIN_SIZE);
+    	while (running) {
+    		messages.add(queue.take());
+    		queue.drainTo(messages, DRAIN_SIZE - 1);
+    		queuedMessages.setValue(queue.size());
+    		for (byte[][] message : messages) {
+    			OutputTuple outTuple = outStream.newTuple();
+    			messageCodec.decode(outTuple, message[2]);
+    			if (channelCodec != null) {
+    				channelCodec.decode(outTuple, message[1]);
+    			}
+    			if (patternCodec != null) {
+    				patternCodec.decode(outTuple, message[0]);
+    			}
+    			outStream.submit(outTuple);
+    		}
+    		messages.clear();
+    	}
+    }
+
+    /**
+     * Stops the threads. Messages waiting in the queue are discarded.
+     * @throws Exception Operator failure, will cause the enclosing PE to terminate.
+     */
+    @Override
+    public synchronized void shutdown() throws Exception {
+    	running = false;
+    	Jedis jedis = listener;
+    	if (jedis != null) {
+    		// Unblocks the subscriber thread.
+    		jedis.disconnect();
+    	}
+    	if (subscriber != null) {
+    		subscriber.interrupt();
+    		subscriber = null;
+    	}
+    	if (submitter != null) {
+    		submitter.interrupt();
+    		submitter = null;
+    	}
+    	super.shutdown();
+    }
+}
@@ -0,0 +1,220 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Spreads reads across the replicas of the primary server of an operator.
+ * <p>Each replica is chosen with a probability inversely proportional to the moving average of its
+ * response time, so faster replicas receive more reads but slower ones are still sampled.
+ * A replica is skipped while its replication offset lags behind the primary by more than
+ * <code>maxLag</code> bytes, while its link to the primary is down, or after a read from it failed.
+ * The state of the replicas is checked with INFO replication every <code>checkInterval</code> milliseconds.
+ * A replica receives reads only after its first check succeeded, so the reads go to the primary
+ * until the state of the replicas is known. If the offset of the primary cannot be read, the lag is unknown:
+ * a replica keeps its state, but is not taken back into the routing until the lag can be checked again.</p>
+ */
+final class ReplicaRouter {
+
+	private static final Logger LOGGER = Logger.getLogger(ReplicaRouter.class);
+
+	// Weight of a new sample in the moving average of the response time.
+	private static final double ALPHA = 0.125;
+	// Response time in nanoseconds assumed for a replica without samples.
+	private static final double INITIAL_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * A replica server and its routing state.
+	 */
+	static final class Replica {
+		final String url;
+		final RedisConnectionPool pool;
+		// Moving average of the response time in nanoseconds; updates may race, which only loses samples.
+		volatile double latency = INITIAL_LATENCY;
+		// False until a replication check succeeds.
+		volatile boolean healthy = false;
+
+		Replica(String url, RedisConnectionPool pool) {
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	private final AbstractRedisOperator operator;
+	private final List<Replica> replicas;
+	private final long maxLag;
+	private final Metric replicaReads;
+	private final Metric replicaFallbacks;
+	private final Random random = new Random();
+	private final ScheduledFuture<?> checker;
+
+	/**
+	 * Connects to the replicas and starts the periodic replication check.
+	 * @param operator the operator whose connection reaches the primary server.
+	 * @param urls urls of the replica servers.
+	 * @param maxLag maximum replication lag in bytes of a replica that receives reads.
+	 * @param checkInterval interval of the replication check in milliseconds.
+	 * @param scheduler executor of the replication check.
+	 * @param replicaReads counts the reads answered by a replica.
+	 * @param replicaFallbacks counts the reads sent to the primary because no replica was available.
+	 */
+	ReplicaRouter(AbstractRedisOperator operator, List<String> urls, long maxLag, long checkInterval,
+			ScheduledExecutorService scheduler, Metric replicaReads, Metric replicaFallbacks) throws Exception {
+		this.operator = operator;
+		this.maxLag = maxLag;
+		this.replicaReads = replicaReads;
+		this.replicaFallbacks = replicaFallbacks;
+		replicas = new ArrayList<Replica>(urls.size());
+		try {
+			for (String url : urls) {
+				replicas.add(new Replica(url, operator.acquireConnectionPool(url)));
+			}
+		} catch (Exception e) {
+			releasePools();
+			throw e;
+		}
+		checker = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, 0, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Chooses the replica for the next read.
+	 * @return a healthy replica, or null if the read must go to the primary.
+	 */
+	Replica choose() {
+		double total = 0;
+		for (Replica replica : replicas) {
+			if (replica.healthy) {
+				total += 1 / replica.latency;
+			}
+		}
+		if (total == 0) {
+			replicaFallbacks.increment();
+			return null;
+		}
+		double target = random.nextDouble() * total;
+		Replica chosen = null;
+		for (Replica replica : replicas) {
+			if (replica.healthy) {
+				chosen = replica;
+				target -= 1 / replica.latency;
+				if (target < 0) {
+					break;
+				}
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * Records the response time of a successful read from a replica.
+	 * @param nanos the response time in nanoseconds.
+	 */
+	void completed(Replica replica, long nanos) {
+		replica.latency += ALPHA * (Math.max(nanos, 1) - replica.latency);
+		replicaReads.increment();
+	}
+
+	/**
+	 * Takes a replica out of the routing until the next replication check succeeds.
+	 */
+	void failed(Replica replica, Exception e) {
+		replica.healthy = false;
+		replicaFallbacks.increment();
+		LOGGER.warn("Read from replica " + replica.url + " failed, reading from the primary", e);
+	}
+
+	/**
+	 * Compares the replication offset of each replica with the offset of the primary.
+	 */
+	void check() {
+		long primaryOffset = -1;
+		Jedis primary = null;
+		try {
+			primary = operator.getConnection();
+			primaryOffset = parseLong(primary.info("replication"), "master_repl_offset:");
+		} catch (Exception e) {
+			// The replicas are still checked for their link status.
+			LOGGER.debug("Reading the replication offset of the primary failed", e);
+		} finally {
+			if (primary != null) {
+				primary.close();
+			}
+		}
+		for (Replica replica : replicas) {
+			boolean healthy = false;
+			Jedis jedis = null;
+			try {
+				jedis = replica.pool.getResource();
+				String info = jedis.info("replication");
+				if (info.contains("master_link_status:up")) {
+					if (primaryOffset >= 0) {
+						long lag = primaryOffset - parseLong(info, "slave_repl_offset:");
+						healthy = lag <= maxLag;
+						if (!healthy) {
+							LOGGER.debug("Replica " + replica.url + " lags " + lag + " bytes behind the primary");
+						}
+					} else {
+						// The lag is unknown.
+						healthy = replica.healthy;
+					}
+				}
+			} catch (Exception e) {
+				LOGGER.debug("Checking replica " + replica.url + " failed", e);
+			} finally {
+				if (jedis != null) {
+					jedis.close();
+				}
+			}
+			if (healthy != replica.healthy) {
+				LOGGER.info("Replica " + replica.url + (healthy ? " receives reads" : " is skipped until it catches up"));
+			}
+			replica.healthy = healthy;
+		}
+	}
+
+	/**
+	 * Returns the value of a numeric field of an INFO reply.
+	 */
+	private static long parseLong(String info, String field) {
+		int start = info.indexOf(field);
+		if (start < 0) {
+			throw new IllegalStateException("INFO replication has no field " + field);
+		}
+		start += field.length();
+		int end = start;
+		while (end < info.length() && Character.isDigit(info.charAt(end))) {
+			end++;
+		}
+		return Long.parseLong(info.substring(start, end));
+	}
+
+	/**
+	 * Stops the replication check and releases the connections to the replicas.
+	 */
+	void close() {
+		checker.cancel(false);
+		releasePools();
+	}
+
+	private void releasePools() {
+		for (Replica replica : replicas) {
+			RedisConnectionPool.release(replica.pool);
+		}
+	}
+}
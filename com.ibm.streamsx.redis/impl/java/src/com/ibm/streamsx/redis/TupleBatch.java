@@ -0,0 +1,122 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.ibm.streams.operator.Tuple;
+
+/**
+ * Collects incoming tuples into micro-batches.
+ * A batch is handed to the {@link Flusher} when it reaches <code>batchSize</code> tuples,
+ * when the oldest tuple in it has waited <code>maxDelay</code> milliseconds,
+ * or when {@link #flush()} is called explicitly (for example on a punctuation mark).
+ * <p>Flushes are serialized, so the flusher sees the batches in arrival order.
+ * If a flush by the delay timer fails, the failure is thrown by the next {@link #add} or {@link #flush()},
+ * because an exception of a scheduled task is not reported to anyone.</p>
+ */
+class TupleBatch {
+
+	/**
+	 * Receives a complete batch of tuples in arrival order.
+	 */
+	interface Flusher {
+		void flush(List<Tuple> tuples) throws Exception;
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(TupleBatch.class);
+
+	private final int batchSize;
+	private final long maxDelay;
+	private final ScheduledExecutorService scheduler;
+	private final Flusher flusher;
+
+	private List<Tuple> tuples;
+	private ScheduledFuture<?> timer = null;
+	// Failure of a flush by the delay timer.
+	private Exception failure = null;
+
+	/**
+	 * @param batchSize maximum number of tuples in a batch.
+	 * @param maxDelay maximum time in milliseconds a tuple waits in the batch, 0 to wait until the batch is full.
+	 * @param scheduler executor used to flush batches that are not full in time.
+	 * @param flusher receives the completed batches.
+	 */
+	TupleBatch(int batchSize, long maxDelay, ScheduledExecutorService scheduler, Flusher flusher) {
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+		this.scheduler = scheduler;
+		this.flusher = flusher;
+		this.tuples = new ArrayList<Tuple>(batchSize);
+	}
+
+	/**
+	 * Adds a tuple to the current batch and flushes the batch if it is full.
+	 */
+	synchronized void add(Tuple tuple) throws Exception {
+		checkFailure();
+		tuples.add(tuple);
+		if (tuples.size() >= batchSize) {
+			flush();
+		} else if (tuples.size() == 1 && maxDelay > 0) {
+			timer = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timerFlush();
+				}
+			}, maxDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void timerFlush() {
+		try {
+			flush();
+		} catch (Exception e) {
+			LOGGER.error("Flushing batch after " + maxDelay + " ms failed", e);
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Hands the current batch to the flusher, if it is not empty.
+	 * @throws Exception the failure of this flush or of an earlier flush by the delay timer.
+	 */
+	synchronized void flush() throws Exception {
+		checkFailure();
+		cancelTimer();
+		if (tuples.isEmpty()) {
+			return;
+		}
+		List<Tuple> batch = tuples;
+		tuples = new ArrayList<Tuple>(batchSize);
+		flusher.flush(batch);
+	}
+
+	/**
+	 * Stops the delay timer. Tuples still in the batch are discarded.
+	 */
+	synchronized void close() {
+		cancelTimer();
+		tuples.clear();
+	}
+
+	private void checkFailure() throws Exception {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void cancelTimer() {
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesces the writes to the same key between two flushes.
+ * <p>{@link #put} keeps only the last value of a key, {@link #add} sums the deltas of a key,
+ * or of a field of a hash key. The pending writes are handed to the {@link Flusher} when
+ * <code>maxEntries</code> distinct keys are pending, when the oldest pending write has waited
+ * <code>maxDelay</code> milliseconds, or when {@link #flush()} is called explicitly.</p>
+ * <p>The pending writes are kept in an open-addressing hash table of parallel arrays, which
+ * does not allocate per write. Flushes are serialized and see the keys in the order of their first write.</p>
+ * <p>The pending writes are cleared only after the flusher succeeded. If a flush fails, the writes are kept
+ * and the failure is thrown by every later {@link #put}, {@link #add} and {@link #flush()}, also if
+ * the flush was started by the delay timer; the writes are not handed to the flusher again, because
+ * some of them may have been applied.</p>
+ */
+final class WriteCoalescer {
+
+	/**
+	 * Receives the coalesced writes. Unused arrays are null.
+	 */
+	interface Flusher {
+		void flush(byte[][] keys, byte[][] fields, byte[][] values, long[] deltas) throws Exception;
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(WriteCoalescer.class);
+
+	private final int maxEntries;
+	private final long maxDelay;
+	private final ScheduledExecutorService scheduler;
+	private final Flusher flusher;
+
+	// The hash table; a slot is free if its key is null.
+	private final byte[][] keys;
+	private final byte[][] fields;
+	private final byte[][] values;
+	private final long[] deltas;
+	private final int[] hashes;
+	// The used slots in the order of their first write.
+	private final int[] order;
+	private int size = 0;
+	private boolean hasFields = false;
+	private boolean hasValues = false;
+
+	private ScheduledFuture<?> timer = null;
+	// Failure of a flush.
+	private Exception failure = null;
+
+	/**
+	 * @param maxEntries maximum number of distinct pending keys.
+	 * @param maxDelay maximum time in milliseconds a write is pending, 0 to wait until <code>maxEntries</code> is reached.
+	 * @param scheduler executor used to flush in time.
+	 * @param flusher receives the coalesced writes.
+	 */
+	WriteCoalescer(int maxEntries, long maxDelay, ScheduledExecutorService scheduler, Flusher flusher) {
+		this.maxEntries = maxEntries;
+		this.maxDelay = maxDelay;
+		this.scheduler = scheduler;
+		this.flusher = flusher;
+		// A load factor of at most 0.5 keeps the probe sequences short.
+		int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+		keys = new byte[capacity][];
+		fields = new byte[capacity][];
+		values = new byte[capacity][];
+		deltas = new long[capacity];
+		hashes = new int[capacity];
+		order = new int[maxEntries];
+	}
+
+	/**
+	 * Sets the pending value of a key, replacing an earlier value.
+	 * @return true if the key had a pending write.
+	 */
+	synchronized boolean put(byte[] key, byte[] value) throws Exception {
+		checkFailure();
+		int pending = size;
+		int slot = slot(key, null);
+		values[slot] = value;
+		hasValues = true;
+		return added(pending);
+	}
+
+	/**
+	 * Adds a delta to the pending delta of a key, or of a field of a hash if <code>field</code> is not null.
+	 * @return true if the key and field had a pending write.
+	 */
+	synchronized boolean add(byte[] key, byte[] field, long delta) throws Exception {
+		checkFailure();
+		int pending = size;
+		int slot = slot(key, field);
+		deltas[slot] += delta;
+		hasFields |= field != null;
+		return added(pending);
+	}
+
+	/**
+	 * Returns the slot of a key and field, claiming a free slot if it is not pending.
+	 */
+	private int slot(byte[] key, byte[] field) {
+		int hash = Arrays.hashCode(key) * 31 + (field != null ? Arrays.hashCode(field) : 0);
+		// Spread the bits, the capacity is a power of 2.
+		hash ^= hash >>> 16;
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && Arrays.equals(keys[slot], key) && Arrays.equals(fields[slot], field)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		fields[slot] = field;
+		hashes[slot] = hash;
+		order[size++] = slot;
+		return slot;
+	}
+
+	private boolean added(int pending) throws Exception {
+		boolean merged = size == pending;
+		if (size >= maxEntries) {
+			flush();
+		} else if (timer == null && maxDelay > 0) {
+			timer = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Exception e) {
+						// Thrown again by the next call on the input port.
+						LOGGER.error("Flushing coalesced writes after " + maxDelay + " ms failed", e);
+					}
+				}
+			}, maxDelay, TimeUnit.MILLISECONDS);
+		}
+		return merged;
+	}
+
+	/**
+	 * Hands the pending writes to the flusher, if there are any, and clears them when the flusher succeeded.
+	 * @throws Exception the failure of this flush or of an earlier flush.
+	 */
+	synchronized void flush() throws Exception {
+		checkFailure();
+		cancelTimer();
+		if (size == 0) {
+			return;
+		}
+		byte[][] flushKeys = new byte[size][];
+		byte[][] flushFields = hasFields ? new byte[size][] : null;
+		byte[][] flushValues = hasValues ? new byte[size][] : null;
+		long[] flushDeltas = hasValues ? null : new long[size];
+		for (int i = 0; i < size; i++) {
+			int slot = order[i];
+			flushKeys[i] = keys[slot];
+			if (flushFields != null) {
+				flushFields[i] = fields[slot];
+			}
+			if (flushValues != null) {
+				flushValues[i] = values[slot];
+			} else {
+				flushDeltas[i] = deltas[slot];
+			}
+		}
+		try {
+			flusher.flush(flushKeys, flushFields, flushValues, flushDeltas);
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		}
+		clear();
+	}
+
+	private void checkFailure() throws Exception {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void clear() {
+		for (int i = 0; i < size; i++) {
+			int slot = order[i];
+			keys[slot] = null;
+			fields[slot] = null;
+			values[slot] = null;
+			deltas[slot] = 0;
+		}
+		size = 0;
+		hasFields = false;
+		hasValues = false;
+	}
+
+	/**
+	 * Stops the delay timer. Pending writes, including those of a failed flush, are discarded.
+	 * @return the number of keys whose writes were discarded.
+	 */
+	synchronized int close() {
+		cancelTimer();
+		int discarded = size;
+		clear();
+		return discarded;
+	}
+
+	private void cancelTimer() {
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+	}
+}
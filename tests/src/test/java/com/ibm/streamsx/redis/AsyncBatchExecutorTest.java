@@ -0,0 +1,180 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ibm.streams.operator.Tuple;
+
+public class AsyncBatchExecutorTest {
+
+	/**
+	 * Completes a request when its latch is released, fails the requests listed in <code>failures</code>.
+	 */
+	private final class BlockingHandler implements AsyncBatchExecutor.Handler {
+		final Map<Tuple, CountDownLatch> releases = new HashMap<Tuple, CountDownLatch>();
+		final Map<Tuple, Exception> failures = new HashMap<Tuple, Exception>();
+		final List<String> submitted = Collections.synchronizedList(new ArrayList<String>());
+
+		Tuple request(String name) {
+			Tuple tuple = TestObjects.tuple(name);
+			releases.put(tuple, new CountDownLatch(1));
+			return tuple;
+		}
+
+		void release(Tuple tuple) {
+			releases.get(tuple).countDown();
+		}
+
+		@Override
+		public List<?> execute(List<Tuple> tuples) throws Exception {
+			Tuple tuple = tuples.get(0);
+			assertTrue(releases.get(tuple).await(5, TimeUnit.SECONDS));
+			if (failures.containsKey(tuple)) {
+				throw failures.get(tuple);
+			}
+			return Collections.singletonList(tuple.toString() + "-result");
+		}
+
+		@Override
+		public void submit(List<Tuple> tuples, List<?> results) {
+			submitted.add((String) results.get(0));
+		}
+	}
+
+	private final BlockingHandler handler = new BlockingHandler();
+	private AsyncBatchExecutor executor;
+
+	@After
+	public void tearDown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	private AsyncBatchExecutor executor(int maxInFlight, boolean ordered) {
+		executor = new AsyncBatchExecutor(maxInFlight, ordered, Executors.defaultThreadFactory(), handler);
+		return executor;
+	}
+
+	private void awaitSubmitted(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handler.submitted.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, handler.submitted.size());
+	}
+
+	@Test
+	public void orderedModeResequencesResults() throws Exception {
+		AsyncBatchExecutor executor = executor(3, true);
+		Tuple a = handler.request("a");
+		Tuple b = handler.request("b");
+		Tuple c = handler.request("c");
+		executor.execute(Collections.singletonList(a));
+		executor.execute(Collections.singletonList(b));
+		executor.execute(Collections.singletonList(c));
+
+		handler.release(c);
+		handler.release(b);
+		Thread.sleep(50);
+		// b and c completed, but wait for a.
+		assertTrue(handler.submitted.isEmpty());
+		handler.release(a);
+		executor.awaitCompletion();
+		assertEquals(Arrays.asList("a-result", "b-result", "c-result"), handler.submitted);
+	}
+
+	@Test
+	public void unorderedModeSubmitsInCompletionOrder() throws Exception {
+		AsyncBatchExecutor executor = executor(3, false);
+		Tuple a = handler.request("a");
+		Tuple b = handler.request("b");
+		Tuple c = handler.request("c");
+		executor.execute(Collections.singletonList(a));
+		executor.execute(Collections.singletonList(b));
+		executor.execute(Collections.singletonList(c));
+
+		handler.release(c);
+		awaitSubmitted(1);
+		handler.release(a);
+		awaitSubmitted(2);
+		handler.release(b);
+		executor.awaitCompletion();
+		assertEquals(Arrays.asList("c-result", "a-result", "b-result"), handler.submitted);
+	}
+
+	@Test
+	public void executeWaitsWhileMaxInFlightRequestsArePending() throws Exception {
+		final AsyncBatchExecutor executor = executor(2, true);
+		Tuple a = handler.request("a");
+		Tuple b = handler.request("b");
+		final Tuple c = handler.request("c");
+		executor.execute(Collections.singletonList(a));
+		executor.execute(Collections.singletonList(b));
+
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(Collections.singletonList(c));
+					started.countDown();
+				} catch (Exception e) {
+					// The latch stays closed and the test fails.
+				}
+			}
+		};
+		producer.start();
+		assertFalse(started.await(50, TimeUnit.MILLISECONDS));
+		handler.release(a);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		handler.release(b);
+		handler.release(c);
+		executor.awaitCompletion();
+		assertEquals(Arrays.asList("a-result", "b-result", "c-result"), handler.submitted);
+	}
+
+	@Test
+	public void failureStopsSubmissionsAndIsRethrown() throws Exception {
+		AsyncBatchExecutor executor = executor(2, true);
+		Tuple a = handler.request("a");
+		Tuple b = handler.request("b");
+		Exception failure = new Exception("request failed");
+		handler.failures.put(a, failure);
+		executor.execute(Collections.singletonList(a));
+		executor.execute(Collections.singletonList(b));
+		handler.release(b);
+		handler.release(a);
+		try {
+			executor.awaitCompletion();
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(failure, e);
+		}
+		// Requests after the failed one are not submitted.
+		assertTrue(handler.submitted.isEmpty());
+		try {
+			executor.execute(Collections.singletonList(handler.request("c")));
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(failure, e);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkLoaderTest {
+
+	private static final ThreadFactory THREADS = Executors.defaultThreadFactory();
+
+	/**
+	 * Answers a command named ERR with an error reply, CLOSE by closing the connection
+	 * and every other command with +OK.
+	 */
+	private static final FakeRedisServer.Handler HANDLER = new FakeRedisServer.Handler() {
+		@Override
+		public String reply(List<String> command, List<String> previous) {
+			if (command.get(0).equals("CLOSE")) {
+				return null;
+			}
+			return command.get(0).equals("ERR") ? "-ERR failed\r\n" : FakeRedisServer.OK;
+		}
+	};
+
+	private FakeRedisServer server;
+	private BulkLoader loader;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeRedisServer(HANDLER);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (loader != null) {
+			loader.close();
+		}
+		server.close();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	@Test
+	public void encodesCommandsInResp() throws Exception {
+		loader = new BulkLoader(server.url(), null, 1000, 32, THREADS);
+		String nine = repeat('n', 9);
+		String ten = repeat('t', 10);
+		// Larger than the send buffer, so it is written directly.
+		String hundred = repeat('h', 100);
+		loader.send(bytes("SET"), bytes(""), bytes(nine));
+		loader.send(bytes("HSET"), bytes(ten), bytes(hundred), bytes("v"));
+		assertEquals(0, loader.finish());
+
+		assertEquals("*3\r\n$3\r\nSET\r\n$0\r\n\r\n$9\r\n" + nine + "\r\n"
+				+ "*4\r\n$4\r\nHSET\r\n$10\r\n" + ten + "\r\n$100\r\n" + hundred + "\r\n$1\r\nv\r\n",
+				server.received());
+		assertEquals(0, loader.getPending());
+	}
+
+	@Test
+	public void sendsAuthAndSelectOfUrl() throws Exception {
+		loader = new BulkLoader("redis://:secret@localhost:" + server.port() + "/2", null, 1000, 1024, THREADS);
+		assertEquals(0, loader.finish());
+		assertEquals(Arrays.asList(Arrays.asList("AUTH", "secret"), Arrays.asList("SELECT", "2")), server.commands());
+	}
+
+	@Test
+	public void finishReturnsErrorReplies() throws Exception {
+		loader = new BulkLoader(server.url(), null, 1000, 1024, THREADS);
+		loader.send(bytes("SET"), bytes("a"), bytes("1"));
+		loader.send(bytes("ERR"));
+		loader.send(bytes("ERR"));
+		loader.send(bytes("SET"), bytes("b"), bytes("2"));
+		assertEquals(2, loader.finish());
+		// The errors are counted since the last call.
+		loader.send(bytes("SET"), bytes("c"), bytes("3"));
+		assertEquals(0, loader.finish());
+		assertEquals(5, server.commands().size());
+	}
+
+	@Test
+	public void concurrentSendsAreNotInterleaved() throws Exception {
+		loader = new BulkLoader(server.url(), null, 1000, 64, THREADS);
+		final int count = 2000;
+		final Exception[] failures = new Exception[2];
+		Thread[] senders = new Thread[2];
+		for (int t = 0; t < senders.length; t++) {
+			final int sender = t;
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < count; i++) {
+							loader.send(bytes("SET"), bytes(sender + ":" + i), bytes(repeat('v', i % 50)));
+						}
+						loader.finish();
+					} catch (Exception e) {
+						failures[sender] = e;
+					}
+				}
+			};
+			senders[t].start();
+		}
+		for (int t = 0; t < senders.length; t++) {
+			senders[t].join();
+			if (failures[t] != null) {
+				throw failures[t];
+			}
+		}
+		assertEquals(0, loader.finish());
+
+		// Every command arrived whole, and in order for each sender.
+		int[] next = new int[senders.length];
+		List<List<String>> commands = server.commands();
+		assertEquals(senders.length * count, commands.size());
+		for (List<String> command : commands) {
+			String[] key = command.get(1).split(":");
+			int sender = Integer.parseInt(key[0]);
+			int i = Integer.parseInt(key[1]);
+			assertEquals(next[sender]++, i);
+			assertEquals(repeat('v', i % 50), command.get(2));
+		}
+	}
+
+	@Test
+	public void finishFailsWhenConnectionIsClosed() throws Exception {
+		loader = new BulkLoader(server.url(), null, 1000, 1024, THREADS);
+		loader.send(bytes("SET"), bytes("a"), bytes("1"));
+		loader.send(bytes("CLOSE"));
+		try {
+			loader.finish();
+			fail("The connection failure was not reported");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Bulk load connection failed after 1 replies"));
+		}
+	}
+}
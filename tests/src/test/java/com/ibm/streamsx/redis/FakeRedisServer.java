@@ -0,0 +1,205 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A server that speaks the RESP protocol on a local port and answers commands with a {@link Handler}.
+ * <p>It records the bytes and the commands it receives from all its connections.</p>
+ */
+final class FakeRedisServer {
+
+	static final String OK = "+OK\r\n";
+
+	/**
+	 * Answers the commands of the server.
+	 */
+	interface Handler {
+		/**
+		 * @param command the command name and its arguments.
+		 * @param previous the previous command of the same connection, or null.
+		 * @return the encoded reply, or null to close the connection.
+		 */
+		String reply(List<String> command, List<String> previous);
+	}
+
+	private final ServerSocket serverSocket;
+	private final Handler handler;
+	private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+	private final List<List<String>> commands = new ArrayList<List<String>>();
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+	FakeRedisServer(Handler handler) throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.handler = handler;
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	static String bulk(String value) {
+		return "$" + value.getBytes().length + "\r\n" + value + "\r\n";
+	}
+
+	static String integer(long value) {
+		return ":" + value + "\r\n";
+	}
+
+	static String array(String... elements) {
+		StringBuilder array = new StringBuilder("*").append(elements.length).append("\r\n");
+		for (String element : elements) {
+			array.append(element);
+		}
+		return array.toString();
+	}
+
+	int port() {
+		return serverSocket.getLocalPort();
+	}
+
+	String url() {
+		return "redis://127.0.0.1:" + port();
+	}
+
+	private void accept() {
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				sockets.add(socket);
+				Thread connection = new Thread() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			}
+		} catch (IOException e) {
+			// Closed by close().
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			List<String> previous = null;
+			while (true) {
+				List<String> command = readCommand(in);
+				synchronized (this) {
+					commands.add(command);
+				}
+				String reply = handler.reply(command, previous);
+				if (reply == null) {
+					break;
+				}
+				out.write(reply.getBytes());
+				out.flush();
+				previous = command;
+			}
+		} catch (IOException e) {
+			// Closed by the client.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed.
+			}
+		}
+	}
+
+	private List<String> readCommand(InputStream in) throws IOException {
+		String header = readLine(in);
+		if (!header.startsWith("*")) {
+			throw new IOException("Expected an array: " + header);
+		}
+		List<String> args = new ArrayList<String>();
+		for (int i = Integer.parseInt(header.substring(1)); i > 0; i--) {
+			String length = readLine(in);
+			if (!length.startsWith("$")) {
+				throw new IOException("Expected a bulk string: " + length);
+			}
+			byte[] arg = new byte[Integer.parseInt(length.substring(1))];
+			for (int n = 0; n < arg.length; n++) {
+				arg[n] = (byte) read(in);
+			}
+			if (!readLine(in).isEmpty()) {
+				throw new IOException("Bulk string is longer than " + arg.length);
+			}
+			args.add(new String(arg));
+		}
+		return args;
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int b = read(in); b != '\r'; b = read(in)) {
+			line.append((char) b);
+		}
+		if (read(in) != '\n') {
+			throw new IOException("Expected CRLF after " + line);
+		}
+		return line.toString();
+	}
+
+	private int read(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new IOException("Connection closed");
+		}
+		synchronized (this) {
+			received.write(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the bytes received on all connections.
+	 */
+	synchronized String received() {
+		return new String(received.toByteArray());
+	}
+
+	/**
+	 * Returns the commands received on all connections.
+	 */
+	synchronized List<List<String>> commands() {
+		return new ArrayList<List<String>>(commands);
+	}
+
+	/**
+	 * Returns how many commands with the given name were received.
+	 */
+	synchronized int count(String name) {
+		int count = 0;
+		for (List<String> command : commands) {
+			if (command.get(0).equalsIgnoreCase(name)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	void close() throws IOException {
+		serverSocket.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+}
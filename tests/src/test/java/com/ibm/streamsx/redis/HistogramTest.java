@@ -0,0 +1,85 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void smallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < 8; i++) {
+			histogram.record(i);
+		}
+		long total = histogram.drain();
+		assertEquals(8, total);
+		assertEquals(3, histogram.percentile(50, total));
+		assertEquals(7, histogram.percentile(100, total));
+		assertEquals(0, histogram.percentile(0, total));
+	}
+
+	@Test
+	public void percentilesAreAccurateToOneEighth() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		long total = histogram.drain();
+		assertWithin(5000, histogram.percentile(50, total));
+		assertWithin(9900, histogram.percentile(99, total));
+		assertWithin(10000, histogram.percentile(100, total));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		// The lower bound of a bucket is at most 1/8 below the values in it.
+		assertTrue(expected + " expected, got " + actual, actual <= expected && actual >= expected - expected / 8);
+	}
+
+	@Test
+	public void negativeValuesCountAsZeroAndLargeValuesFit() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		long total = histogram.drain();
+		assertEquals(2, total);
+		assertEquals(0, histogram.percentile(50, total));
+		assertWithin(Long.MAX_VALUE, histogram.percentile(100, total));
+	}
+
+	@Test
+	public void drainStartsNewInterval() {
+		Histogram histogram = new Histogram();
+		histogram.record(1000);
+		assertEquals(1, histogram.drain());
+		assertEquals(0, histogram.drain());
+		assertEquals(0, histogram.percentile(99, 0));
+		histogram.record(3);
+		long total = histogram.drain();
+		assertEquals(1, total);
+		assertEquals(3, histogram.percentile(99, total));
+	}
+
+	@Test
+	public void concurrentRecordsAreCounted() throws Exception {
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						histogram.record(i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.drain());
+	}
+}
@@ -0,0 +1,101 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Runs against the REDIS server of the system property <code>redis.url</code>, by default
+ * <code>redis://localhost:6379</code>, and is skipped if the server is not reachable.
+ */
+public class NearCacheInvalidatorTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private final String url = System.getProperty("redis.url", "redis://localhost:6379");
+	private final byte[] key = ("streamsx.redis.test:" + System.nanoTime()).getBytes();
+	private Jedis jedis;
+	private NearCache cache;
+	private NearCacheInvalidator invalidator;
+
+	@Before
+	public void setUp() throws Exception {
+		try {
+			jedis = new Jedis(new URI(url));
+			jedis.ping();
+		} catch (Exception e) {
+			jedis.close();
+			jedis = null;
+			Assume.assumeNoException("REDIS server " + url + " is not reachable", e);
+		}
+		cache = new NearCache(100, NearCache.EVICTION_LRU, 0, false,
+				TestObjects.metric(), TestObjects.metric(), TestObjects.metric());
+	}
+
+	@After
+	public void tearDown() {
+		if (invalidator != null) {
+			invalidator.stop();
+		}
+		if (jedis != null) {
+			jedis.del(key);
+			jedis.close();
+		}
+	}
+
+	@Test
+	public void keyspaceNotificationInvalidatesKey() throws Exception {
+		List<String> events = jedis.configGet("notify-keyspace-events");
+		jedis.configSet("notify-keyspace-events", "K$");
+		try {
+			assertInvalidated(NearCacheInvalidator.INVALIDATION_KEYSPACE);
+		} finally {
+			jedis.configSet("notify-keyspace-events", events.get(1));
+		}
+	}
+
+	@Test
+	public void trackingInvalidatesKey() throws Exception {
+		String info = jedis.info("server");
+		int start = info.indexOf("redis_version:") + "redis_version:".length();
+		int major = Integer.parseInt(info.substring(start, info.indexOf('.', start)));
+		Assume.assumeTrue("CLIENT TRACKING requires REDIS 6", major >= 6);
+		assertInvalidated(NearCacheInvalidator.INVALIDATION_TRACKING);
+	}
+
+	private void assertInvalidated(String mode) throws Exception {
+		AbstractRedisOperator operator = new AbstractRedisOperator() {
+		};
+		operator.setRedisUrl(url);
+		long version = cache.version();
+		invalidator = new NearCacheInvalidator(operator, cache, mode, Executors.defaultThreadFactory());
+		invalidator.start();
+		// The cache is cleared once the listener is connected.
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (cache.version() == version && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("The listener did not connect", cache.version() != version);
+
+		cache.put(key, "old".getBytes(), cache.version());
+		assertNotNull(cache.get(key));
+		// The subscription may still be in flight, so the key is written until the message arrives.
+		while (cache.get(key) != null && System.currentTimeMillis() < deadline) {
+			jedis.set(key, "new".getBytes());
+			Thread.sleep(10);
+		}
+		assertNull("The key was not invalidated", cache.get(key));
+	}
+}
@@ -0,0 +1,129 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+public class NearCacheTest {
+
+	private final Metric hits = TestObjects.metric();
+	private final Metric misses = TestObjects.metric();
+	private final Metric evictions = TestObjects.metric();
+
+	private NearCache cache(int maxSize, String eviction, long ttl, boolean cacheMissingKeys) {
+		return new NearCache(maxSize, eviction, ttl, cacheMissingKeys, hits, misses, evictions);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	private static void put(NearCache cache, String key, String value) {
+		cache.put(bytes(key), value != null ? bytes(value) : null, cache.version());
+	}
+
+	@Test
+	public void returnsCachedValuesAndCountsHitsAndMisses() {
+		NearCache cache = cache(10, NearCache.EVICTION_LRU, 0, false);
+		put(cache, "a", "1");
+		assertArrayEquals(bytes("1"), cache.get(bytes("a")).value);
+		// Keys compare by content, not by array identity.
+		assertNotNull(cache.get(bytes("a")));
+		assertNull(cache.get(bytes("b")));
+		assertEquals(2, hits.getValue());
+		assertEquals(1, misses.getValue());
+	}
+
+	@Test
+	public void lruEvictsLeastRecentlyUsedKey() {
+		NearCache cache = cache(2, NearCache.EVICTION_LRU, 0, false);
+		put(cache, "a", "1");
+		put(cache, "b", "2");
+		cache.get(bytes("a"));
+		put(cache, "c", "3");
+		assertNotNull(cache.get(bytes("a")));
+		assertNull(cache.get(bytes("b")));
+		assertNotNull(cache.get(bytes("c")));
+		assertEquals(1, evictions.getValue());
+	}
+
+	@Test
+	public void lfuEvictsLeastFrequentlyUsedKey() {
+		NearCache cache = cache(3, NearCache.EVICTION_LFU, 0, false);
+		put(cache, "a", "1");
+		put(cache, "b", "2");
+		put(cache, "c", "3");
+		cache.get(bytes("a"));
+		cache.get(bytes("a"));
+		cache.get(bytes("c"));
+		put(cache, "d", "4");
+		assertNull(cache.get(bytes("b")));
+		assertNotNull(cache.get(bytes("a")));
+		assertNotNull(cache.get(bytes("c")));
+		assertNotNull(cache.get(bytes("d")));
+		assertEquals(1, evictions.getValue());
+	}
+
+	@Test
+	public void entriesExpireAfterTtl() throws Exception {
+		NearCache cache = cache(10, NearCache.EVICTION_LRU, 50, false);
+		put(cache, "a", "1");
+		assertNotNull(cache.get(bytes("a")));
+		Thread.sleep(100);
+		assertNull(cache.get(bytes("a")));
+	}
+
+	@Test
+	public void missingKeysAreCachedOnlyIfEnabled() {
+		NearCache negative = cache(10, NearCache.EVICTION_LRU, 0, true);
+		put(negative, "a", null);
+		NearCache.Entry entry = negative.get(bytes("a"));
+		assertNotNull(entry);
+		assertNull(entry.value);
+
+		NearCache positive = cache(10, NearCache.EVICTION_LRU, 0, false);
+		put(positive, "a", null);
+		assertNull(positive.get(bytes("a")));
+	}
+
+	@Test
+	public void invalidateRemovesKey() {
+		NearCache cache = cache(10, NearCache.EVICTION_LRU, 0, false);
+		put(cache, "a", "1");
+		put(cache, "b", "2");
+		cache.invalidate(bytes("a"));
+		assertNull(cache.get(bytes("a")));
+		assertNotNull(cache.get(bytes("b")));
+		cache.clear();
+		assertNull(cache.get(bytes("b")));
+	}
+
+	@Test
+	public void readOvertakenByInvalidationIsNotCached() {
+		NearCache cache = cache(10, NearCache.EVICTION_LRU, 0, true);
+		long readVersion = cache.version();
+		// The key changes in REDIS while the read is in flight.
+		cache.invalidate(bytes("a"));
+		cache.put(bytes("a"), bytes("stale"), readVersion);
+		assertNull(cache.get(bytes("a")));
+
+		readVersion = cache.version();
+		cache.clear();
+		cache.put(bytes("a"), bytes("stale"), readVersion);
+		assertNull(cache.get(bytes("a")));
+
+		cache.put(bytes("a"), bytes("fresh"), cache.version());
+		assertArrayEquals(bytes("fresh"), cache.get(bytes("a")).value);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownEviction() {
+		cache(10, "fifo", 0, false);
+	}
+}
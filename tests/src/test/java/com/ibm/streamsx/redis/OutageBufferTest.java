@@ -0,0 +1,194 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+public class OutageBufferTest {
+
+	// A pair of a two byte key and a two byte value with the estimated overhead in memory.
+	private static final int MEMORY_PAIR = 4 + 64;
+	// The same pair in the spill file, with the length of key and value.
+	private static final int SPILL_PAIR = 4 + 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Metric bufferedBytes = TestObjects.metric();
+	private final Metric bufferedWrites = TestObjects.metric();
+	private File spillFile;
+
+	@Before
+	public void setUp() {
+		spillFile = new File(folder.getRoot(), "spill");
+	}
+
+	private OutageBuffer buffer(long memoryCapacity, int spillCapacity) {
+		return new OutageBuffer(memoryCapacity, spillFile, spillCapacity, bufferedBytes, bufferedWrites);
+	}
+
+	private static byte[][] pairs(String... strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes();
+		}
+		return bytes;
+	}
+
+	private static void assertPeek(OutageBuffer buffer, int max, String... expectedKeys) {
+		byte[][] keys = new byte[max][];
+		byte[][] values = new byte[max][];
+		assertEquals(expectedKeys.length, buffer.peek(keys, values));
+		for (int i = 0; i < expectedKeys.length; i++) {
+			assertArrayEquals(expectedKeys[i].getBytes(), keys[i]);
+			assertArrayEquals(("v" + expectedKeys[i].substring(1)).getBytes(), values[i]);
+		}
+	}
+
+	@Test
+	public void appendsOnlyDuringOutage() throws Exception {
+		OutageBuffer buffer = buffer(1000, 0);
+		assertFalse(buffer.isActive());
+		assertFalse(buffer.appendIfActive(pairs("k1"), pairs("v1")));
+		assertTrue(buffer.start(pairs("k1"), pairs("v1")));
+		assertFalse(buffer.start(pairs("k2"), pairs("v2")));
+		assertTrue(buffer.appendIfActive(pairs("k3"), pairs("v3")));
+		assertEquals(3, bufferedWrites.getValue());
+		assertEquals(3 * MEMORY_PAIR, bufferedBytes.getValue());
+
+		assertPeek(buffer, 10, "k1", "k2", "k3");
+		assertFalse(buffer.finish());
+		buffer.remove(3);
+		assertTrue(buffer.finish());
+		assertFalse(buffer.isActive());
+		assertEquals(0, bufferedWrites.getValue());
+		assertEquals(0, bufferedBytes.getValue());
+	}
+
+	@Test
+	public void peekDoesNotRemove() throws Exception {
+		OutageBuffer buffer = buffer(1000, 0);
+		buffer.start(pairs("k1", "k2", "k3"), pairs("v1", "v2", "v3"));
+		assertPeek(buffer, 2, "k1", "k2");
+		assertPeek(buffer, 2, "k1", "k2");
+		buffer.remove(2);
+		assertPeek(buffer, 2, "k3");
+		assertEquals(1, bufferedWrites.getValue());
+	}
+
+	@Test
+	public void spillKeepsArrivalOrder() throws Exception {
+		OutageBuffer buffer = buffer(MEMORY_PAIR, 1024);
+		buffer.start(pairs("k1", "k2"), pairs("v1", "v2"));
+		// Memory has room again only after k1 was removed, but k3 must follow k2 into the spill file.
+		buffer.appendIfActive(pairs("k3"), pairs("v3"));
+		assertTrue(spillFile.exists());
+		assertEquals(3, bufferedWrites.getValue());
+		assertEquals(MEMORY_PAIR + 2 * SPILL_PAIR, bufferedBytes.getValue());
+
+		assertPeek(buffer, 2, "k1", "k2");
+		buffer.remove(2);
+		assertEquals(1, bufferedWrites.getValue());
+		assertEquals(SPILL_PAIR, bufferedBytes.getValue());
+
+		assertPeek(buffer, 10, "k3");
+		buffer.remove(1);
+		assertEquals(0, bufferedWrites.getValue());
+		assertEquals(0, bufferedBytes.getValue());
+		assertTrue(buffer.finish());
+
+		// The emptied spill file is reused from the start.
+		buffer.start(pairs("k4", "k5"), pairs("v4", "v5"));
+		assertPeek(buffer, 10, "k4", "k5");
+		assertEquals(MEMORY_PAIR + SPILL_PAIR, bufferedBytes.getValue());
+	}
+
+	@Test
+	public void appendWaitsUntilReplayMadeRoom() throws Exception {
+		final OutageBuffer buffer = buffer(MEMORY_PAIR, 0);
+		buffer.start(pairs("k1"), pairs("v1"));
+		final CountDownLatch appended = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					buffer.appendIfActive(pairs("k2"), pairs("v2"));
+					appended.countDown();
+				} catch (Exception e) {
+					// The latch stays closed and the test fails.
+				}
+			}
+		};
+		producer.start();
+		assertFalse(appended.await(50, TimeUnit.MILLISECONDS));
+		assertPeek(buffer, 10, "k1");
+		buffer.remove(1);
+		assertTrue(appended.await(5, TimeUnit.SECONDS));
+		assertPeek(buffer, 10, "k2");
+	}
+
+	@Test
+	public void failureKeepsPairsAndFailsAppends() throws Exception {
+		final OutageBuffer buffer = buffer(MEMORY_PAIR, 0);
+		buffer.start(pairs("k1"), pairs("v1"));
+		final AtomicReference<Exception> waiting = new AtomicReference<Exception>();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					buffer.appendIfActive(pairs("k2"), pairs("v2"));
+				} catch (Exception e) {
+					waiting.set(e);
+				}
+			}
+		};
+		producer.start();
+		Thread.sleep(50);
+		Exception cause = new Exception("replay failed");
+		buffer.fail(cause);
+		producer.join(5000);
+		assertTrue(waiting.get() instanceof IOException);
+		assertSame(cause, waiting.get().getCause());
+
+		try {
+			buffer.appendIfActive(pairs("k3"), pairs("v3"));
+			fail("The failure was not reported");
+		} catch (IOException e) {
+			assertSame(cause, e.getCause());
+		}
+		assertTrue(buffer.isActive());
+		assertPeek(buffer, 10, "k1");
+	}
+
+	@Test
+	public void closeDiscardsPairsAndDeletesSpillFile() throws Exception {
+		OutageBuffer buffer = buffer(MEMORY_PAIR, 1024);
+		buffer.start(pairs("k1", "k2", "k3"), pairs("v1", "v2", "v3"));
+		assertTrue(spillFile.exists());
+		assertEquals(3, buffer.close());
+		assertFalse(spillFile.exists());
+		try {
+			buffer.appendIfActive(pairs("k4"), pairs("v4"));
+			fail("Append after close");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static com.ibm.streamsx.redis.FakeRedisServer.array;
+import static com.ibm.streamsx.redis.FakeRedisServer.bulk;
+import static com.ibm.streamsx.redis.FakeRedisServer.integer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.streams.operator.metrics.OperatorMetrics;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+public class RedisClusterTest {
+
+	private static final int HALF = 8192;
+
+	/**
+	 * A cluster node that answers GET with its name and the key if it owns the slot of the key,
+	 * and with a MOVED redirection to the owner otherwise.
+	 */
+	private final class Node implements FakeRedisServer.Handler {
+		final String name;
+		final FakeRedisServer server;
+		// Number of GET commands that are answered by closing the connection.
+		final AtomicInteger failures = new AtomicInteger();
+		// If set, the node redirects every GET to itself.
+		volatile boolean movedToSelf = false;
+
+		Node(String name) throws Exception {
+			this.name = name;
+			this.server = new FakeRedisServer(this);
+		}
+
+		@Override
+		public String reply(List<String> command, List<String> previous) {
+			String name = command.get(0).toUpperCase();
+			if (name.equals("CLUSTER")) {
+				return slots();
+			} else if (name.equals("GET")) {
+				return get(command.get(1), previous != null && previous.get(0).equalsIgnoreCase("ASKING"));
+			} else if (name.equals("PING")) {
+				return "+PONG\r\n";
+			}
+			return FakeRedisServer.OK;
+		}
+
+		private String get(String key, boolean asking) {
+			int slot = JedisClusterCRC16.getSlot(key);
+			Node owner = slot < HALF ? lowOwner : highOwner;
+			if (movedToSelf) {
+				return "-MOVED " + slot + " 127.0.0.1:" + server.port() + "\r\n";
+			}
+			if (key.equals(askKey) && !asking) {
+				return "-ASK " + slot + " 127.0.0.1:" + importing.server.port() + "\r\n";
+			}
+			if (owner != this && !asking) {
+				return "-MOVED " + slot + " 127.0.0.1:" + owner.server.port() + "\r\n";
+			}
+			if (failures.getAndDecrement() > 0) {
+				return null;
+			}
+			return bulk(this.name + ":" + key);
+		}
+	}
+
+	private Node nodeA;
+	private Node nodeB;
+	// Owners of the lower and the upper half of the slots.
+	private volatile Node lowOwner;
+	private volatile Node highOwner;
+	// A key that the owner of its slot redirects to the importing node with ASK.
+	private volatile String askKey = null;
+	private volatile Node importing = null;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+	private final OperatorMetrics operatorMetrics = TestObjects.operatorMetrics();
+	private RedisMetrics metrics;
+	private RedisCluster cluster;
+
+	private final String lowKey = key(0, HALF, "low");
+	private final String highKey = key(HALF, 16384, "high");
+
+	@Before
+	public void setUp() throws Exception {
+		nodeA = new Node("A");
+		nodeB = new Node("B");
+		lowOwner = nodeA;
+		highOwner = nodeB;
+		metrics = new RedisMetrics(operatorMetrics, scheduler);
+		cluster = new RedisCluster(new String[] { nodeA.server.url(), nodeB.server.url() }, null, 1000,
+				new JedisPoolConfig(), executor, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cluster.close();
+		metrics.close();
+		executor.shutdownNow();
+		scheduler.shutdownNow();
+		nodeA.server.close();
+		nodeB.server.close();
+	}
+
+	/**
+	 * Returns a key whose slot is in the range [first, last).
+	 */
+	private static String key(int first, int last, String prefix) {
+		for (int i = 0; ; i++) {
+			int slot = JedisClusterCRC16.getSlot(prefix + i);
+			if (slot >= first && slot < last) {
+				return prefix + i;
+			}
+		}
+	}
+
+	/**
+	 * The CLUSTER SLOTS reply of the current owners.
+	 */
+	private String slots() {
+		if (lowOwner == highOwner) {
+			return array(range(0, 16383, lowOwner));
+		}
+		return array(range(0, HALF - 1, lowOwner), range(HALF, 16383, highOwner));
+	}
+
+	private static String range(int first, int last, Node owner) {
+		return array(integer(first), integer(last), array(bulk("127.0.0.1"), integer(owner.server.port()), bulk(owner.name)));
+	}
+
+	private static PipelineCommand<byte[]> get(final String[] keys) {
+		return new PipelineCommand<byte[]>() {
+			@Override
+			Response<byte[]> queue(Pipeline pipeline, int index) {
+				return pipeline.get(keys[index].getBytes());
+			}
+		};
+	}
+
+	private String[] execute(String[] keys, PipelineCommand<byte[]> command) throws Exception {
+		byte[][] keyBytes = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			keyBytes[i] = keys[i].getBytes();
+		}
+		Object[] results = new Object[keys.length];
+		cluster.execute(keyBytes, command, results);
+		String[] values = new String[results.length];
+		for (int i = 0; i < results.length; i++) {
+			values[i] = new String((byte[]) results[i]);
+		}
+		return values;
+	}
+
+	private String[] execute(String... keys) throws Exception {
+		return execute(keys, get(keys));
+	}
+
+	private static void assertValues(String[] actual, String... expected) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void routesEachKeyToTheOwnerOfItsSlot() throws Exception {
+		String lowKey2 = key(0, HALF, "other");
+		String highKey2 = key(HALF, 16384, "other");
+		assertValues(execute(lowKey, highKey, lowKey2, highKey2),
+				"A:" + lowKey, "B:" + highKey, "A:" + lowKey2, "B:" + highKey2);
+		assertEquals(2, cluster.getMasters().size());
+		assertNotSame(cluster.getPool(lowKey.getBytes()), cluster.getPool(highKey.getBytes()));
+		// The slot map was read once, one pipeline was sent to each node.
+		assertEquals(1, nodeA.server.count("CLUSTER") + nodeB.server.count("CLUSTER"));
+		assertEquals(2, nodeA.server.count("GET"));
+		assertEquals(2, nodeB.server.count("GET"));
+	}
+
+	@Test
+	public void followsMovedRedirectionAndRefreshesSlotMap() throws Exception {
+		highOwner = nodeA;
+		cluster.refresh();
+		assertEquals(1, cluster.getMasters().size());
+
+		// Slots move to B, which the operator learns from the MOVED reply.
+		highOwner = nodeB;
+		assertValues(execute(lowKey, highKey), "A:" + lowKey, "B:" + highKey);
+		assertEquals(2, cluster.getMasters().size());
+		assertValues(execute(highKey), "B:" + highKey);
+		assertEquals(2, nodeA.server.count("GET"));
+		assertEquals(2, nodeB.server.count("GET"));
+	}
+
+	@Test
+	public void followsAskRedirectionWithoutChangingSlotMap() throws Exception {
+		askKey = highKey;
+		importing = nodeA;
+		assertValues(execute(lowKey, highKey), "A:" + lowKey, "A:" + highKey);
+		assertEquals(1, nodeA.server.count("ASKING"));
+		// The slot is still owned by B.
+		assertEquals(1, nodeA.server.count("CLUSTER") + nodeB.server.count("CLUSTER"));
+		RedisConnectionPool pool = cluster.getPool(highKey.getBytes());
+		Jedis jedis = pool.getResource();
+		try {
+			assertEquals(nodeB.server.port(), jedis.getClient().getPort());
+		} finally {
+			jedis.close();
+		}
+	}
+
+	@Test
+	public void failsAfterTooManyRedirections() throws Exception {
+		nodeA.movedToSelf = true;
+		try {
+			execute(lowKey);
+			fail("The redirections were not reported");
+		} catch (JedisConnectionException e) {
+			assertEquals("Too many cluster redirections for 1 commands", e.getMessage());
+		}
+		assertTrue(nodeA.server.count("GET") >= 5);
+	}
+
+	@Test
+	public void resendsIdempotentCommandAfterConnectionFailure() throws Exception {
+		nodeA.failures.set(1);
+		assertValues(execute(lowKey), "A:" + lowKey);
+		assertEquals(2, nodeA.server.count("GET"));
+		assertEquals(1, operatorMetrics.getCustomMetric("nReconnects").getValue());
+	}
+
+	@Test
+	public void doesNotResendOtherCommandAfterConnectionFailure() throws Exception {
+		nodeA.failures.set(1);
+		final String[] keys = { lowKey };
+		PipelineCommand<byte[]> command = new PipelineCommand<byte[]>() {
+			@Override
+			Response<byte[]> queue(Pipeline pipeline, int index) {
+				return pipeline.get(keys[index].getBytes());
+			}
+
+			@Override
+			boolean isIdempotent() {
+				return false;
+			}
+		};
+		try {
+			execute(keys, command);
+			fail("The connection failure was not reported");
+		} catch (JedisConnectionException e) {
+			// Expected.
+		}
+		assertEquals(1, nodeA.server.count("GET"));
+	}
+
+	@Test
+	public void releasesPoolOfRemovedNodeAtNextRefresh() throws Exception {
+		cluster.refresh();
+		RedisConnectionPool poolB = cluster.getPool(highKey.getBytes());
+		highOwner = nodeA;
+		cluster.refresh();
+		assertEquals(1, cluster.getMasters().size());
+		// A batch routed before the refresh can still use the pool.
+		assertFalse(poolB.isClosed());
+		poolB.getResource().close();
+		cluster.refresh();
+		assertTrue(poolB.isClosed());
+	}
+
+	@Test
+	public void resendsBatchOfReleasedPool() throws Exception {
+		cluster.refresh();
+		RedisConnectionPool poolB = cluster.getPool(highKey.getBytes());
+		// The pool is closed while the batch is routed to it.
+		highOwner = nodeA;
+		RedisConnectionPool.release(poolB);
+		assertTrue(poolB.isClosed());
+		assertValues(execute(highKey), "A:" + highKey);
+		assertSame(cluster.getPool(lowKey.getBytes()), cluster.getPool(highKey.getBytes()));
+	}
+
+	@Test
+	public void rethrowsErrorOfConcurrentNode() throws Exception {
+		final String[] keys = { lowKey, highKey };
+		PipelineCommand<byte[]> command = new PipelineCommand<byte[]>() {
+			@Override
+			Response<byte[]> queue(Pipeline pipeline, int index) {
+				if (index == 1) {
+					throw new AssertionError("queue failed");
+				}
+				return pipeline.get(keys[index].getBytes());
+			}
+		};
+		try {
+			execute(keys, command);
+			fail("The error was not reported");
+		} catch (AssertionError e) {
+			assertEquals("queue failed", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Type.MetaType;
+
+public class RedisHGetTest {
+
+	private static final StreamSchema INPUT = TestObjects.schema("key", MetaType.RSTRING, "id", MetaType.INT64);
+	// name and age are read from the hash, key and id are copied from the input tuple.
+	private static final StreamSchema OUTPUT = TestObjects.schema("key", MetaType.RSTRING, "id", MetaType.INT64,
+			"name", MetaType.USTRING, "age", MetaType.INT32, "tags", MetaType.LIST);
+
+	private static ByteBuffer name(String name) {
+		return ByteBuffer.wrap(name.getBytes());
+	}
+
+	private static Map<byte[], byte[]> hash(String... fields) {
+		Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>();
+		for (int i = 0; i < fields.length; i += 2) {
+			hash.put(fields[i].getBytes(), fields[i + 1].getBytes());
+		}
+		return hash;
+	}
+
+	@Test
+	public void hashFieldsExcludeInputAttributes() {
+		Map<ByteBuffer, AttributeCodec> codecs = RedisHGet.hashFieldCodecs(INPUT, OUTPUT);
+		assertEquals(2, codecs.size());
+		assertTrue(codecs.containsKey(name("name")));
+		assertTrue(codecs.containsKey(name("age")));
+		assertFalse(codecs.containsKey(name("key")));
+		assertFalse(codecs.containsKey(name("id")));
+	}
+
+	@Test
+	public void keyAndCopiedAttributesSurviveHgetall() {
+		Map<ByteBuffer, AttributeCodec> codecs = RedisHGet.hashFieldCodecs(INPUT, OUTPUT);
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+		// The hash has fields with the names of the key and the copied attributes.
+		RedisHGet.assignFields(TestObjects.outputTuple(values),
+				hash("key", "other", "id", "7", "name", "Ann", "age", " 42 ", "unknown", "x"), codecs);
+		assertEquals(2, values.size());
+		assertEquals("Ann", values.get(2));
+		assertEquals(42, values.get(3));
+	}
+
+	@Test
+	public void missingFieldsAreNotAssigned() {
+		Map<ByteBuffer, AttributeCodec> codecs = RedisHGet.hashFieldCodecs(INPUT, OUTPUT);
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+		RedisHGet.assignFields(TestObjects.outputTuple(values), hash("age", "1"), codecs);
+		assertEquals(1, values.size());
+		assertEquals(1, values.get(3));
+	}
+}
@@ -0,0 +1,154 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static com.ibm.streamsx.redis.FakeRedisServer.bulk;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+import redis.clients.jedis.Jedis;
+
+public class ReplicaRouterTest {
+
+	private static final long MAX_LAG = 100;
+
+	/**
+	 * Scheduler that never runs the periodic check, so that the test runs it.
+	 */
+	private static final class ManualScheduler extends ScheduledThreadPoolExecutor {
+		ManualScheduler() {
+			super(1);
+		}
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+			return schedule(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, 1, TimeUnit.HOURS);
+		}
+	}
+
+	// Replication offset of the primary, or -1 if INFO fails on the primary.
+	private volatile long primaryOffset = 1000;
+	private volatile long replicaOffset = 1000;
+	private volatile boolean linkUp = true;
+
+	private FakeRedisServer primary;
+	private FakeRedisServer replica;
+	private final ManualScheduler scheduler = new ManualScheduler();
+	private final Metric replicaFallbacks = TestObjects.metric();
+	private ReplicaRouter router;
+
+	@Before
+	public void setUp() throws Exception {
+		primary = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command, List<String> previous) {
+				if (primaryOffset < 0) {
+					return "-ERR primary is loading\r\n";
+				}
+				return bulk("# Replication\r\nrole:master\r\nmaster_repl_offset:" + primaryOffset + "\r\n");
+			}
+		});
+		replica = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command, List<String> previous) {
+				return bulk("# Replication\r\nrole:slave\r\nmaster_link_status:" + (linkUp ? "up" : "down")
+						+ "\r\nslave_repl_offset:" + replicaOffset + "\r\n");
+			}
+		});
+		AbstractRedisOperator operator = new AbstractRedisOperator() {
+			@Override
+			protected Jedis getConnection() {
+				return new Jedis("127.0.0.1", primary.port());
+			}
+		};
+		router = new ReplicaRouter(operator, Collections.singletonList(replica.url()), MAX_LAG, 1000, scheduler,
+				TestObjects.metric(), replicaFallbacks);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		router.close();
+		scheduler.shutdownNow();
+		primary.close();
+		replica.close();
+	}
+
+	private String chosen() {
+		ReplicaRouter.Replica chosen = router.choose();
+		return chosen != null ? chosen.url : null;
+	}
+
+	@Test
+	public void replicaReceivesReadsAfterFirstCheck() {
+		assertNull(chosen());
+		router.check();
+		assertEquals(replica.url(), chosen());
+		assertEquals(1, replicaFallbacks.getValue());
+	}
+
+	@Test
+	public void laggingReplicaIsSkipped() {
+		router.check();
+		replicaOffset = primaryOffset - MAX_LAG - 1;
+		router.check();
+		assertNull(chosen());
+		replicaOffset = primaryOffset - MAX_LAG;
+		router.check();
+		assertEquals(replica.url(), chosen());
+	}
+
+	@Test
+	public void replicaWithDownLinkIsSkipped() {
+		router.check();
+		linkUp = false;
+		router.check();
+		assertNull(chosen());
+	}
+
+	@Test
+	public void unknownPrimaryOffsetDoesNotTakeReplicaIntoRouting() {
+		primaryOffset = -1;
+		router.check();
+		assertNull(chosen());
+
+		primaryOffset = 1000;
+		router.check();
+		assertEquals(replica.url(), chosen());
+	}
+
+	@Test
+	public void unknownPrimaryOffsetKeepsReplicaState() {
+		router.check();
+		primaryOffset = -1;
+		router.check();
+		assertEquals(replica.url(), chosen());
+
+		// A replica that failed a read stays out of the routing.
+		router.failed(router.choose(), new Exception("read failed"));
+		router.check();
+		assertNull(chosen());
+
+		// The link status is still checked.
+		primaryOffset = 1000;
+		router.check();
+		primaryOffset = -1;
+		linkUp = false;
+		router.check();
+		assertNull(chosen());
+	}
+}
@@ -0,0 +1,186 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.Type;
+import com.ibm.streams.operator.Type.MetaType;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.metrics.OperatorMetrics;
+
+/**
+ * Stand-ins for the objects of the Streams runtime that the classes under test only pass around or count.
+ */
+final class TestObjects {
+
+	private TestObjects() {
+	}
+
+	/**
+	 * Returns a metric that keeps its value in memory.
+	 */
+	static Metric metric() {
+		final AtomicLong value = new AtomicLong();
+		return proxy(Metric.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getValue")) {
+					return Long.valueOf(value.get());
+				} else if (name.equals("setValue")) {
+					value.set((Long) args[0]);
+				} else if (name.equals("incrementValue")) {
+					value.addAndGet((Long) args[0]);
+				} else if (name.equals("increment")) {
+					value.incrementAndGet();
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	/**
+	 * Returns operator metrics whose custom metrics keep their values in memory.
+	 * {@link OperatorMetrics#getCustomMetric} returns the metric created with the same name.
+	 */
+	static OperatorMetrics operatorMetrics() {
+		final Map<String, Metric> metrics = new HashMap<String, Metric>();
+		return proxy(OperatorMetrics.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				synchronized (metrics) {
+					if (method.getName().equals("createCustomMetric")) {
+						Metric metric = metric();
+						metrics.put((String) args[0], metric);
+						return metric;
+					} else if (method.getName().equals("getCustomMetric")) {
+						return metrics.get(args[0]);
+					}
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	/**
+	 * Returns a schema with the given attributes.
+	 * @param attributes pairs of the attribute name and its {@link MetaType}.
+	 */
+	static StreamSchema schema(Object... attributes) {
+		final List<Attribute> list = new ArrayList<Attribute>();
+		for (int i = 0; i < attributes.length; i += 2) {
+			list.add(attribute((String) attributes[i], (MetaType) attributes[i + 1], i / 2));
+		}
+		return proxy(StreamSchema.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("iterator")) {
+					return list.iterator();
+				} else if (name.equals("getAttributeCount")) {
+					return Integer.valueOf(list.size());
+				} else if (name.equals("getAttribute") && args[0] instanceof Integer) {
+					return list.get((Integer) args[0]);
+				} else if (name.equals("getAttribute") || name.equals("getAttributeIndex")) {
+					for (Attribute attribute : list) {
+						if (attribute.getName().equals(args[0])) {
+							return name.equals("getAttribute") ? attribute : Integer.valueOf(attribute.getIndex());
+						}
+					}
+					return name.equals("getAttribute") ? null : Integer.valueOf(-1);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static Attribute attribute(final String attributeName, final MetaType metaType, final int index) {
+		final Type type = proxy(Type.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getMetaType")) {
+					return metaType;
+				}
+				return defaultValue(method);
+			}
+		});
+		return proxy(Attribute.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getName")) {
+					return attributeName;
+				} else if (name.equals("getType")) {
+					return type;
+				} else if (name.equals("getIndex")) {
+					return Integer.valueOf(index);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	/**
+	 * Returns an output tuple that stores the values set by index in <code>values</code>.
+	 */
+	static OutputTuple outputTuple(final Map<Integer, Object> values) {
+		return proxy(OutputTuple.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+					values.put((Integer) args[0], args[1]);
+					return null;
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	/**
+	 * Returns a tuple without attributes that is identified by its name.
+	 */
+	static Tuple tuple(final String name) {
+		return proxy(Tuple.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("toString")) {
+					return name;
+				} else if (method.getName().equals("equals")) {
+					return Boolean.valueOf(proxy == args[0]);
+				} else if (method.getName().equals("hashCode")) {
+					return Integer.valueOf(System.identityHashCode(proxy));
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(TestObjects.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == long.class) {
+			return Long.valueOf(0);
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type.isPrimitive() && type != void.class) {
+			throw new UnsupportedOperationException(method.toString());
+		}
+		return null;
+	}
+}
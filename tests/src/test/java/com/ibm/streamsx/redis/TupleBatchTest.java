@@ -0,0 +1,127 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.streams.operator.Tuple;
+
+public class TupleBatchTest {
+
+	private ScheduledExecutorService scheduler;
+	private final List<List<Tuple>> batches = new ArrayList<List<Tuple>>();
+
+	@Before
+	public void setUp() {
+		scheduler = new ScheduledThreadPoolExecutor(1);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	private TupleBatch batch(int batchSize, long maxDelay, final CountDownLatch flushed) {
+		return new TupleBatch(batchSize, maxDelay, scheduler, new TupleBatch.Flusher() {
+			@Override
+			public void flush(List<Tuple> tuples) {
+				synchronized (batches) {
+					batches.add(tuples);
+				}
+				if (flushed != null) {
+					flushed.countDown();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void flushesFullBatchesInArrivalOrder() throws Exception {
+		TupleBatch batch = batch(3, 0, null);
+		Tuple[] tuples = new Tuple[7];
+		for (int i = 0; i < tuples.length; i++) {
+			tuples[i] = TestObjects.tuple("t" + i);
+			batch.add(tuples[i]);
+		}
+		assertEquals(2, batches.size());
+		assertEquals(Arrays.asList(tuples[0], tuples[1], tuples[2]), batches.get(0));
+		assertEquals(Arrays.asList(tuples[3], tuples[4], tuples[5]), batches.get(1));
+
+		batch.flush();
+		assertEquals(3, batches.size());
+		assertEquals(Arrays.asList(tuples[6]), batches.get(2));
+	}
+
+	@Test
+	public void flushOfEmptyBatchDoesNothing() throws Exception {
+		TupleBatch batch = batch(3, 0, null);
+		batch.flush();
+		assertTrue(batches.isEmpty());
+	}
+
+	@Test
+	public void flushesAfterMaxDelay() throws Exception {
+		CountDownLatch flushed = new CountDownLatch(1);
+		TupleBatch batch = batch(100, 20, flushed);
+		batch.add(TestObjects.tuple("a"));
+		batch.add(TestObjects.tuple("b"));
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+		synchronized (batches) {
+			assertEquals(1, batches.size());
+			assertEquals(2, batches.get(0).size());
+		}
+	}
+
+	@Test
+	public void closeDiscardsPendingTuples() throws Exception {
+		TupleBatch batch = batch(3, 20, null);
+		batch.add(TestObjects.tuple("a"));
+		batch.close();
+		Thread.sleep(100);
+		batch.flush();
+		assertTrue(batches.isEmpty());
+	}
+
+	@Test
+	public void failureOfTimedFlushIsThrownByNextCall() throws Exception {
+		final Exception failure = new Exception("write failed");
+		final CountDownLatch attempted = new CountDownLatch(1);
+		TupleBatch batch = new TupleBatch(100, 20, scheduler, new TupleBatch.Flusher() {
+			@Override
+			public void flush(List<Tuple> tuples) throws Exception {
+				attempted.countDown();
+				throw failure;
+			}
+		});
+		batch.add(TestObjects.tuple("a"));
+		assertTrue(attempted.await(5, TimeUnit.SECONDS));
+		// The timer records the failure after the flusher returned.
+		Thread.sleep(50);
+		try {
+			batch.add(TestObjects.tuple("b"));
+			fail("The failure of the timed flush was not reported");
+		} catch (Exception e) {
+			assertSame(failure, e);
+		}
+		try {
+			batch.flush();
+			fail("The failure of the timed flush was not reported");
+		} catch (Exception e) {
+			assertSame(failure, e);
+		}
+	}
+}
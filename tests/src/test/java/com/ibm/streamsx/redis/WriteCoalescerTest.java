@@ -0,0 +1,186 @@
+/* Copyright (C)2020, International Business Machines Corporation and others. All Rights Reserved. */
+package com.ibm.streamsx.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WriteCoalescerTest {
+
+	/**
+	 * Records the flushed writes, or fails with <code>failure</code> if it is set.
+	 */
+	private static final class RecordingFlusher implements WriteCoalescer.Flusher {
+		final List<Object[]> flushes = new ArrayList<Object[]>();
+		final CountDownLatch flushed = new CountDownLatch(1);
+		Exception failure = null;
+
+		@Override
+		public synchronized void flush(byte[][] keys, byte[][] fields, byte[][] values, long[] deltas) throws Exception {
+			flushes.add(new Object[] { keys, fields, values, deltas });
+			flushed.countDown();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		synchronized byte[][] keys(int flush) {
+			return (byte[][]) flushes.get(flush)[0];
+		}
+
+		synchronized byte[][] fields(int flush) {
+			return (byte[][]) flushes.get(flush)[1];
+		}
+
+		synchronized byte[][] values(int flush) {
+			return (byte[][]) flushes.get(flush)[2];
+		}
+
+		synchronized long[] deltas(int flush) {
+			return (long[]) flushes.get(flush)[3];
+		}
+	}
+
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+	private final RecordingFlusher flusher = new RecordingFlusher();
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	private static byte[][] all(String... strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = bytes(strings[i]);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void putKeepsLastValueInOrderOfFirstWrite() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(10, 0, scheduler, flusher);
+		assertFalse(coalescer.put(bytes("a"), bytes("1")));
+		assertFalse(coalescer.put(bytes("b"), bytes("2")));
+		// Keys compare by content.
+		assertTrue(coalescer.put(bytes("a"), bytes("3")));
+		assertTrue(flusher.flushes.isEmpty());
+
+		coalescer.flush();
+		assertEquals(1, flusher.flushes.size());
+		assertArrayEquals(all("a", "b"), flusher.keys(0));
+		assertArrayEquals(all("3", "2"), flusher.values(0));
+		assertNull(flusher.fields(0));
+		assertNull(flusher.deltas(0));
+
+		// The flush cleared the pending writes.
+		coalescer.flush();
+		assertEquals(1, flusher.flushes.size());
+		assertFalse(coalescer.put(bytes("a"), bytes("4")));
+	}
+
+	@Test
+	public void addSumsDeltasPerKeyAndField() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(10, 0, scheduler, flusher);
+		assertFalse(coalescer.add(bytes("k"), bytes("f1"), 1));
+		assertFalse(coalescer.add(bytes("k"), bytes("f2"), 2));
+		assertTrue(coalescer.add(bytes("k"), bytes("f1"), 5));
+		assertFalse(coalescer.add(bytes("j"), bytes("f1"), -3));
+		coalescer.flush();
+		assertArrayEquals(all("k", "k", "j"), flusher.keys(0));
+		assertArrayEquals(all("f1", "f2", "f1"), flusher.fields(0));
+		assertArrayEquals(new long[] { 6, 2, -3 }, flusher.deltas(0));
+		assertNull(flusher.values(0));
+	}
+
+	@Test
+	public void flushesWhenMaxEntriesArePending() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(1000, 0, scheduler, flusher);
+		for (int i = 0; i < 1000; i++) {
+			coalescer.add(bytes("key" + i), null, i);
+			coalescer.add(bytes("key" + i), null, 1);
+		}
+		assertEquals(1, flusher.flushes.size());
+		byte[][] keys = flusher.keys(0);
+		long[] deltas = flusher.deltas(0);
+		assertEquals(1000, keys.length);
+		for (int i = 0; i < 1000; i++) {
+			assertArrayEquals(bytes("key" + i), keys[i]);
+			// The delta after the flush started a new pending write.
+			assertEquals(i < 999 ? i + 1 : i, deltas[i]);
+		}
+		assertEquals(1, coalescer.close());
+	}
+
+	@Test
+	public void flushesAfterMaxDelay() throws Exception {
+		WriteCoalescer coalescer = new WriteCoalescer(10, 20, scheduler, flusher);
+		coalescer.put(bytes("a"), bytes("1"));
+		assertTrue(flusher.flushed.await(5, TimeUnit.SECONDS));
+		assertArrayEquals(all("a"), flusher.keys(0));
+	}
+
+	@Test
+	public void failedFlushKeepsWritesAndIsRethrown() throws Exception {
+		flusher.failure = new Exception("write failed");
+		WriteCoalescer coalescer = new WriteCoalescer(10, 0, scheduler, flusher);
+		coalescer.add(bytes("a"), null, 1);
+		coalescer.add(bytes("b"), null, 2);
+		try {
+			coalescer.flush();
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(flusher.failure, e);
+		}
+		try {
+			coalescer.add(bytes("a"), null, 1);
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(flusher.failure, e);
+		}
+		try {
+			coalescer.flush();
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(flusher.failure, e);
+		}
+		// The deltas are not sent twice.
+		assertEquals(1, flusher.flushes.size());
+		assertEquals(2, coalescer.close());
+	}
+
+	@Test
+	public void failureOfTimedFlushIsThrownByNextPut() throws Exception {
+		flusher.failure = new Exception("write failed");
+		WriteCoalescer coalescer = new WriteCoalescer(10, 20, scheduler, flusher);
+		coalescer.put(bytes("a"), bytes("1"));
+		assertTrue(flusher.flushed.await(5, TimeUnit.SECONDS));
+		// The timer records the failure after the flusher returned.
+		Thread.sleep(50);
+		try {
+			coalescer.put(bytes("b"), bytes("2"));
+			fail("The failure was not reported");
+		} catch (Exception e) {
+			assertSame(flusher.failure, e);
+		}
+		assertEquals(1, coalescer.close());
+	}
+}